@@ -0,0 +1,299 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * {@link AsyncFileSystem} on top of the synchronous {@link IFileSystem}.
+ *
+ * Hector only has blocking calls, so every operation runs on a small fixed
+ * pool of <code>threads</code> threads, the others wait in its queue. With
+ * virtual threads every pending operation gets one of its own. No more than
+ * <code>maxInFlight</code> operations are pending at a time: past the limit,
+ * the caller blocks until one completes, so a bulk caller is slowed down to
+ * the pace of the cluster instead of queueing without bound. Operations
+ * submitted by the callbacks of other ones, which run on the pool, never
+ * wait: the pool would wait on itself. The pool is separate from the
+ * {@link IOScheduler}, whose workers the operations wait on while reading.
+ */
+public class AsyncCassandraFileSystem implements AsyncFileSystem
+{
+    private static Logger LOGGER = Logger.getLogger(AsyncCassandraFileSystem.class);
+    private static AsyncFileSystem instance;
+    private final IFileSystem fs;
+    private final ThreadPoolExecutor executor;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    // set while a thread of the pool runs an operation and its callbacks
+    private final ThreadLocal<Boolean> onPool = new ThreadLocal<>();
+
+    interface Operation<T>
+    {
+        T call() throws IOException;
+    }
+
+    public static AsyncFileSystem getInstance() throws TTransportException, IOException
+    {
+        synchronized (AsyncCassandraFileSystem.class) {
+            if (instance == null) {
+                IFileSystem fs = CassandraFileSystem.getInstance();
+                instance = new AsyncCassandraFileSystem(fs, FSConstants.AsyncThreads, FSConstants.AsyncMaxInFlight,
+                        FSConstants.VirtualThreads);
+            }
+        }
+        return instance;
+    }
+
+    AsyncCassandraFileSystem(IFileSystem fs, int threads, int maxInFlight, boolean virtualThreads)
+    {
+        this.fs = fs;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.inFlight = new Semaphore(this.maxInFlight);
+
+        ThreadFactory factory = virtualThreads ? IOScheduler.virtualThreadFactory() : null;
+        int poolSize = factory != null ? this.maxInFlight : Math.max(1, Math.min(threads, this.maxInFlight));
+        if (factory == null) {
+            factory = new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "CassandraFS-Async-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+        }
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), factory);
+        executor.allowCoreThreadTimeOut(true);
+        LOGGER.debug("Asynchronous file system started with " + poolSize + " threads, at most " + this.maxInFlight
+                + " operations in flight");
+    }
+
+    @Override
+    public CompletableFuture<Void> createFile(final String path, final byte[] content)
+    {
+        return submit(new Operation<Void>()
+        {
+            @Override
+            public Void call() throws IOException
+            {
+                fs.createFile(path, content);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readFile(final String path)
+    {
+        return submit(new Operation<byte[]>()
+        {
+            @Override
+            public byte[] call() throws IOException
+            {
+                try (CFileInputStream in = fs.open(path)) {
+                    if (in.getLength() > Integer.MAX_VALUE - 8)
+                        throw new IOException("File is too large to be read at once: " + path);
+                    byte[] content = new byte[(int) in.getLength()];
+                    in.readFully(0, content);
+                    return content;
+                }
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<CFileInputStream> open(final String path)
+    {
+        return submit(new Operation<CFileInputStream>()
+        {
+            @Override
+            public CFileInputStream call() throws IOException
+            {
+                return fs.open(path);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteFile(final String path)
+    {
+        return submit(new Operation<Boolean>()
+        {
+            @Override
+            public Boolean call() throws IOException
+            {
+                return fs.deleteFile(path);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteDir(final String path, final boolean recursive)
+    {
+        return submit(new Operation<Boolean>()
+        {
+            @Override
+            public Boolean call() throws IOException
+            {
+                return fs.deleteDir(path, recursive);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> mkdir(final String path)
+    {
+        return submit(new Operation<Boolean>()
+        {
+            @Override
+            public Boolean call() throws IOException
+            {
+                return fs.mkdir(path);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Path>> list(final String path)
+    {
+        return submit(new Operation<List<Path>>()
+        {
+            @Override
+            public List<Path> call() throws IOException
+            {
+                return fs.list(path);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Path> stat(final String path)
+    {
+        return submit(new Operation<Path>()
+        {
+            @Override
+            public Path call() throws IOException
+            {
+                return fs.stat(path);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> existDir(final String path)
+    {
+        return submit(new Operation<Boolean>()
+        {
+            @Override
+            public Boolean call() throws IOException
+            {
+                return fs.existDir(path);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> existFile(final String path)
+    {
+        return submit(new Operation<Boolean>()
+        {
+            @Override
+            public Boolean call() throws IOException
+            {
+                return fs.existFile(path);
+            }
+        });
+    }
+
+    /**
+     * Number of operations submitted and not completed yet.
+     */
+    public int getInFlight()
+    {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+
+    /**
+     * Lets the pending operations finish and refuses new ones.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    private <T> CompletableFuture<T> submit(final Operation<T> operation)
+    {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final boolean acquired;
+        if (onPool.get() != null) {
+            acquired = inFlight.tryAcquire();
+        }
+        else {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(new InterruptedIOException(
+                        "Interrupted while waiting for one of " + maxInFlight + " operations in flight"));
+                return future;
+            }
+            acquired = true;
+        }
+
+        try {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    T result = null;
+                    Throwable failure = null;
+                    try {
+                        result = operation.call();
+                    } catch (Throwable t) {
+                        failure = t;
+                    }
+                    // release first, callbacks run on this thread and may submit more work
+                    if (acquired)
+                        inFlight.release();
+                    onPool.set(Boolean.TRUE);
+                    try {
+                        if (failure == null)
+                            future.complete(result);
+                        else
+                            future.completeExceptionally(failure);
+                    } finally {
+                        onPool.remove();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            if (acquired)
+                inFlight.release();
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+}
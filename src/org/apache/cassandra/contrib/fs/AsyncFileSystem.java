@@ -0,0 +1,41 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Companion of {@link IFileSystem} whose operations return once they are
+ * queued and complete their future when the file system operation is done, so
+ * a few threads can keep many metadata operations in flight. Queueing blocks
+ * while the implementation has as many operations pending as it allows.
+ * Failures complete the future exceptionally with the IOException of the
+ * operation.
+ */
+public interface AsyncFileSystem {
+
+	public abstract CompletableFuture<Void> createFile(String path, byte[] content);
+
+	/**
+	 * The whole content of the file.
+	 */
+	public abstract CompletableFuture<byte[]> readFile(String path);
+
+	public abstract CompletableFuture<CFileInputStream> open(String path);
+
+	public abstract CompletableFuture<Boolean> deleteFile(String path);
+
+	public abstract CompletableFuture<Boolean> deleteDir(String path, boolean recursive);
+
+	public abstract CompletableFuture<Boolean> mkdir(String path);
+
+	public abstract CompletableFuture<List<Path>> list(String path);
+
+	/**
+	 * Completes with null if there is nothing at <code>path</code>.
+	 */
+	public abstract CompletableFuture<Path> stat(String path);
+
+	public abstract CompletableFuture<Boolean> existDir(String path);
+
+	public abstract CompletableFuture<Boolean> existFile(String path);
+}
@@ -0,0 +1,44 @@
+package org.apache.cassandra.contrib.fs;
+
+/**
+ * Picks the block size a new file is written with. The size is recorded in
+ * the FileMeta row of the file, so files written with different sizes are all
+ * read back correctly.
+ *
+ * Files read at random offsets get the smallest blocks, so a read fetches
+ * little more than it needs. A file expected to fit in one block gets a single
+ * block just large enough for it, which keeps its buffers small. Large files
+ * and files of unknown length get the configured block size, the largest one
+ * a mutation can carry.
+ */
+public class BlockSizeChooser
+{
+    /**
+     * @param expectedLength the expected length of the file, negative if it is
+     *            not known
+     * @param randomAccess whether the file is mostly read at random offsets
+     */
+    public static int choose(long expectedLength, boolean randomAccess)
+    {
+        return choose(expectedLength, randomAccess, FSConstants.MinBlockSize, FSConstants.BlockSize,
+                FSConstants.SubBlockSize);
+    }
+
+    static int choose(long expectedLength, boolean randomAccess, int minBlockSize, int maxBlockSize, int subBlockSize)
+    {
+        minBlockSize = Math.min(minBlockSize, maxBlockSize);
+        if (randomAccess)
+            return minBlockSize;
+        if (expectedLength < 0 || expectedLength >= maxBlockSize)
+            return maxBlockSize;
+
+        // the next power of two, a size class of the buffer pool
+        long size = Long.highestOneBit(Math.max(1, expectedLength));
+        if (size < expectedLength)
+            size <<= 1;
+        // whole sub-blocks only
+        if (subBlockSize > 0)
+            size = (size + subBlockSize - 1) / subBlockSize * subBlockSize;
+        return (int) Math.max(minBlockSize, Math.min(maxBlockSize, size));
+    }
+}
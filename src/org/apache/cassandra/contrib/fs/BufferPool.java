@@ -0,0 +1,204 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Shared pool of the block buffers used to upload files, so steady uploads
+ * stop allocating a new block sized array per chunk.
+ *
+ * Buffers come in power of two size classes. The pool keeps track of every
+ * buffer it handed out: the bytes handed out plus the bytes kept idle never go
+ * over <code>capacity</code>. When a class has no idle buffer and there is
+ * no room for a new one, the idle buffers of the other classes that have
+ * been idle the longest are dropped to make room, so a change in block size
+ * does not leave the pool full of buffers nobody asks for. A buffer acquired
+ * beyond the capacity is a plain allocation that is dropped when released,
+ * and releasing a pooled buffer twice is an error.
+ *
+ * The buffers are heap buffers on purpose: Thrift serializes a ByteBuffer
+ * through its backing array, so direct buffers can not be sent to Cassandra.
+ */
+public class BufferPool
+{
+    private static Logger LOGGER = Logger.getLogger(BufferPool.class);
+    private final static int MinClassBits = 12;
+    private final long capacity;
+    // idle buffers by size class
+    private final List<ArrayDeque<ByteBuffer>> idle;
+    private final Set<ByteBuffer> outstanding = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+    // every buffer owned by the pool, handed out or idle
+    private final Set<ByteBuffer> pooled = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+    private long idleBytes = 0;
+    private long outstandingBytes = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param capacity the most bytes the pool accounts for, 0 disables pooling
+     */
+    public BufferPool(long capacity)
+    {
+        this.capacity = Math.max(0, capacity);
+        idle = new ArrayList<>(31 - MinClassBits);
+        for (int i = 0; i < 31 - MinClassBits; i++)
+            idle.add(new ArrayDeque<ByteBuffer>());
+        if (this.capacity > 0)
+            LOGGER.debug("Buffer pool enabled with a capacity of " + this.capacity + " bytes");
+    }
+
+    /**
+     * A buffer with at least <code>size</code> bytes, positioned at 0 with
+     * its limit at <code>size</code>.
+     */
+    public ByteBuffer acquire(int size)
+    {
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = null;
+        synchronized (this) {
+            if (sizeClass >= 0) {
+                int classSize = 1 << (sizeClass + MinClassBits);
+                buffer = idle.get(sizeClass).pollFirst();
+                if (buffer != null) {
+                    idleBytes -= classSize;
+                    hits.incrementAndGet();
+                }
+                else if (outstandingBytes + classSize <= capacity) {
+                    evict(outstandingBytes + idleBytes + classSize - capacity);
+                    buffer = ByteBuffer.allocate(classSize);
+                    pooled.add(buffer);
+                    allocations.incrementAndGet();
+                }
+                if (buffer != null) {
+                    outstanding.add(buffer);
+                    outstandingBytes += classSize;
+                }
+            }
+        }
+        if (buffer == null) {
+            // over capacity or too large for a class, not pooled
+            allocations.incrementAndGet();
+            buffer = ByteBuffer.allocate(size);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool, the caller must not use it afterwards.
+     */
+    public void release(ByteBuffer buffer)
+    {
+        synchronized (this) {
+            if (!outstanding.remove(buffer)) {
+                if (pooled.contains(buffer))
+                    throw new IllegalStateException("Buffer released twice");
+                // not pooled, left to the garbage collector
+                return;
+            }
+            int sizeClass = sizeClass(buffer.capacity());
+            outstandingBytes -= buffer.capacity();
+            idle.get(sizeClass).addFirst(buffer);
+            idleBytes += buffer.capacity();
+        }
+    }
+
+    /**
+     * Drops the idle buffers.
+     */
+    public synchronized void clear()
+    {
+        for (ArrayDeque<ByteBuffer> buffers : idle) {
+            for (ByteBuffer buffer : buffers)
+                pooled.remove(buffer);
+            buffers.clear();
+        }
+        idleBytes = 0;
+    }
+
+    /**
+     * Drops idle buffers until at least <code>bytes</code> bytes are freed,
+     * the least recently released buffer of the class holding the most idle
+     * bytes first.
+     */
+    private void evict(long bytes)
+    {
+        while (bytes > 0 && idleBytes > 0) {
+            int largest = -1;
+            long largestBytes = 0;
+            for (int i = 0; i < idle.size(); i++) {
+                long classBytes = (long) idle.get(i).size() << (i + MinClassBits);
+                if (classBytes > largestBytes) {
+                    largest = i;
+                    largestBytes = classBytes;
+                }
+            }
+            ByteBuffer buffer = idle.get(largest).pollLast();
+            pooled.remove(buffer);
+            idleBytes -= buffer.capacity();
+            bytes -= buffer.capacity();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized long getIdleBytes()
+    {
+        return idleBytes;
+    }
+
+    /**
+     * Bytes of the pooled buffers acquired and not released yet.
+     */
+    public synchronized long getOutstandingBytes()
+    {
+        return outstandingBytes;
+    }
+
+    /**
+     * Number of acquisitions served by an idle buffer.
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getAllocations()
+    {
+        return allocations.get();
+    }
+
+    /**
+     * Number of idle buffers dropped to make room for another size class.
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Index of the smallest class that holds <code>size</code> bytes, -1 when
+     * the buffer can not be pooled.
+     */
+    private int sizeClass(int size)
+    {
+        if (capacity == 0 || size > (1 << 30))
+            return -1;
+        int bits = Math.max(MinClassBits, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1));
+        return bits - MinClassBits;
+    }
+}
@@ -1,173 +1,358 @@
 package org.apache.cassandra.contrib.fs;
 
-import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedList;
-import java.util.concurrent.Semaphore;
-import java.util.logging.Level;
-import org.apache.cassandra.contrib.fs.util.Bytes;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 import org.apache.cassandra.thrift.NotFoundException;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
 import org.apache.log4j.Logger;
 
-public class CFileInputStream extends InputStream {
+/**
+ * Sequential reads go through a read-ahead window, seeks restart the window at
+ * the chunk holding the new position and positional reads fetch only the chunks
+ * they cover.
+ */
+public class CFileInputStream extends InputStream implements Seekable, PositionedReadable {
 
     private static Logger LOGGER = Logger.getLogger(CFileInputStream.class);
-    private InputStream curBlockStream;
+    private byte[] curBlock = new byte[0];
+    private int curPos = 0;
     private String path;
     private CassandraFacade facade;
     private long length;
     private int numOfChunks;
     private int numOfChunksAcquired = 0;
-    private LinkedList<byte[]> bufferList;
-    private Semaphore sem;
-    private boolean buffering;
+    // offset inside the next chunk where reading resumes after a seek
+    private int seekOffset = 0;
+    private IOScheduler.Lane lane;
+    private ReadAheadBuffer readAhead;
     private String uuid = "";
+    private FileLayout layout;
+    private boolean closed = false;
 
     public CFileInputStream(String path, CassandraFacade facade)
             throws IOException {
         this.path = path;
         this.facade = facade;
-        uuid = facade.getRowUUID(path);
-        
-        length = Bytes.toLong(facade.get(FSConstants.FileMetaCF, uuid, FSConstants.LengthAttr));
+        layout = facade.loadFile(path);
+        if (layout == null)
+            throw new IOException("No such file: " + path);
+        uuid = layout.getUUID();
+        length = layout.getLength();
         LOGGER.debug("Length: " + length);
-        
-        //Add an extra semaphore since we removed the reading of the first chunk from this
-        //constructor
-        numOfChunks = (int)(length/(long)FSConstants.BlockSize) + (length%FSConstants.BlockSize == 0 ? 0 : 1);
+
+        numOfChunks = layout.getNumOfChunks();
         LOGGER.debug("Number of chunks: " + numOfChunks);
-        sem = new Semaphore(numOfChunks, true);
-        this.curBlockStream = new ByteArrayInputStream(new byte[0]);
-        buffering = true;
-        bufferList = new LinkedList();
-        
-        //initialize semaphore to be available
-        sem.drainPermits();
-        new BufferThread().start();
+
+        lane = facade.getIOScheduler().newLane("read " + path);
+        readAhead = new ReadAheadBuffer(facade, lane, layout,
+                FSConstants.ReadAheadChunks, FSConstants.ReadAheadBytes);
    }
 
     @Override
-    public int read() throws IOException 
-    {
-        int next = curBlockStream.read();
-        if (next != -1) {
-            return next;
-        } else {
-            try
-            {
-                if((!buffering && bufferList.size() == 0) || numOfChunksAcquired == numOfChunks)
-                    return -1;
-
-                LOGGER.debug("Acquiring semaphore");
-                sem.acquire();
-                LOGGER.debug("Acquiring succeded");
-
-                byte[] bytes = (byte[]) bufferList.poll();
-                if(bytes == null)
-                {
-                    LOGGER.debug("Buffering file: " + path  + " reached <EOF>");
-                    return -1;
-                }
-                numOfChunksAcquired++;
-                curBlockStream = new ByteArrayInputStream(bytes);
-                LOGGER.debug("ByteArrayInputStream length: " + bytes.length);
-                return curBlockStream.read();
-            } catch (InterruptedException ex) {
-                LOGGER.debug(ex);
-            } catch (IOException e) {
-                if (e.getCause() instanceof NotFoundException) {
-                    LOGGER.debug("NotFoundException");
-                    return -1;
-                } else {
-                    throw e;
-                }
+    public int read() throws IOException
+    {
+        checkOpen();
+        if (curPos == curBlock.length && !nextBlock()) {
+            return -1;
+        }
+        return curBlock[curPos++] & 0xff;
+    }
+
+    /**
+     * Copies whole slices of the buffered chunks instead of going byte by byte.
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        checkOpen();
+        if (len == 0) {
+            return 0;
+        }
+        int total = 0;
+        while (total < len) {
+            if (curPos == curBlock.length && !nextBlock()) {
+                break;
             }
+            int num = Math.min(len - total, curBlock.length - curPos);
+            System.arraycopy(curBlock, curPos, b, off + total, num);
+            curPos += num;
+            total += num;
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    /**
+     * Reads as many bytes as fit in <code>dst</code>.
+     *
+     * @return the number of bytes read, or -1 at the end of the file
+     */
+    public int read(ByteBuffer dst) throws IOException
+    {
+        checkOpen();
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        int total = 0;
+        while (dst.hasRemaining()) {
+            if (curPos == curBlock.length && !nextBlock()) {
+                break;
+            }
+            int num = Math.min(dst.remaining(), curBlock.length - curPos);
+            dst.put(curBlock, curPos, num);
+            curPos += num;
+            total += num;
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    /**
+     * Writes the rest of the file to <code>out</code>, handing every chunk over
+     * as it was fetched, without copying it.
+     *
+     * @return the number of bytes written
+     */
+    public long transferTo(OutputStream out) throws IOException
+    {
+        checkOpen();
+        long total = 0;
+        while (curPos < curBlock.length || nextBlock()) {
+            int num = curBlock.length - curPos;
+            out.write(curBlock, curPos, num);
+            curPos += num;
+            total += num;
         }
+        return total;
+    }
 
-        return -1;
+    /**
+     * Writes the rest of the file to <code>out</code>, wrapping every chunk
+     * as it was fetched, without copying it. A FileChannel is written with
+     * positional writes from its current position, which is moved past the
+     * data at the end.
+     *
+     * @return the number of bytes written
+     */
+    public long transferTo(WritableByteChannel out) throws IOException
+    {
+        checkOpen();
+        FileChannel file = out instanceof FileChannel ? (FileChannel) out : null;
+        long position = file != null ? file.position() : 0;
+        long total = 0;
+        while (curPos < curBlock.length || nextBlock()) {
+            ByteBuffer buffer = ByteBuffer.wrap(curBlock, curPos, curBlock.length - curPos);
+            while (buffer.hasRemaining()) {
+                if (file != null)
+                    position += file.write(buffer, position);
+                else
+                    out.write(buffer);
+            }
+            total += curBlock.length - curPos;
+            curPos = curBlock.length;
+        }
+        if (file != null)
+            file.position(position);
+        return total;
     }
 
+    @Override
+    public int available() throws IOException
+    {
+        checkOpen();
+        return curBlock.length - curPos;
+    }
 
-    class BufferThread extends Thread
+    public long getLength()
     {
-        private int blockId;
+        return length;
+    }
 
-        BufferThread()
-        {
-            blockId = 0;
+    @Override
+    public long getPos() throws IOException
+    {
+        if (numOfChunksAcquired == 0) {
+            return seekOffset;
+        }
+        if (curPos == curBlock.length) {
+            // nothing left of the current chunk, the position is where the next one starts
+            return Math.min(length, (long) numOfChunksAcquired * layout.getBlockSize() + seekOffset);
         }
+        return (long) (numOfChunksAcquired - 1) * layout.getBlockSize() + curPos;
+    }
 
-        @Override
-        public void run()
-        {
-            buffering = true;
-            try {
-                while (facade.exist(uuid + "_$" + blockId, FSConstants.FileDataCF)) {
-                    if (blockId >= numOfChunks) {
-                        new CleanerThread(blockId).start();
-                        blockId++;
-                        break;
-                    }
-                    LOGGER.debug("Buffering chunk: " + uuid + "_$" + blockId);
-                    byte[] bytes = facade.get(FSConstants.FileDataCF, uuid + "_$" + blockId, FSConstants.ChunkAttr);
-                    LOGGER.debug("Buffering chunk: " + uuid + "_$" + blockId++ + "...completed.");
-
-                    bufferList.offer(bytes);
-                    
-                    LOGGER.debug("Releasing semaphore");
-                    sem.release();
-                    LOGGER.debug("Releasing completed ");
-                }
-            }  catch (IOException ex) {
-                LOGGER.debug(ex);
-            }
-            buffering = false;
+    /**
+     * Moves to <code>pos</code>. Only the chunk holding the new position and
+     * the ones after it are fetched. Seeking to the length of the file is
+     * allowed, seeking past it fails and leaves the position as it was.
+     */
+    @Override
+    public void seek(long pos) throws IOException
+    {
+        checkOpen();
+        if (pos < 0) {
+            throw new IOException("Cannot seek to negative position " + pos + " in " + path);
+        }
+        if (pos > length) {
+            throw new EOFException("Cannot seek to " + pos + " past the end of " + path + ", length " + length);
+        }
+        if (pos == length) {
+            endOfFile();
+            return;
+        }
+        int index = (int) (pos / layout.getBlockSize());
+        int offset = (int) (pos % layout.getBlockSize());
+        if (index == numOfChunksAcquired - 1 && curBlock.length > 0) {
+            curPos = Math.min(offset, curBlock.length);
+            return;
+        }
+        numOfChunksAcquired = index;
+        seekOffset = offset;
+        curBlock = new byte[0];
+        curPos = 0;
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) throws IOException
+    {
+        return false;
+    }
 
-            if(sem.availablePermits() == 0 && sem.hasQueuedThreads())
-                sem.release();
+    @Override
+    public long skip(long n) throws IOException
+    {
+        if (n <= 0) {
+            return 0;
         }
+        long pos = getPos();
+        long target = Math.min(length, pos + n);
+        seek(target);
+        return target - pos;
     }
 
-    class CleanerThread extends Thread
+    /**
+     * Reads from <code>position</code> without moving the stream. The chunks
+     * covering the range are fetched directly, the read-ahead window is left
+     * untouched. With the sub-block layout only the columns covering the
+     * range are transferred.
+     */
+    @Override
+    public int read(long position, byte[] b, int off, int len) throws IOException
     {
-        private int index;
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        checkOpen();
+        if (position >= length) {
+            return -1;
+        }
+        len = (int) Math.min(len, length - position);
+        int total = 0;
+        while (total < len) {
+            long pos = position + total;
+            int index = (int) (pos / layout.getBlockSize());
+            int offset = (int) (pos % layout.getBlockSize());
+            int num = layout.readChunk(facade, index, offset, b, off + total, len - total);
+            if (num <= 0) {
+                // the range is inside the file, its block must be there
+                throw missingChunk(index, null);
+            }
+            total += num;
+        }
+        return total;
+    }
 
-        CleanerThread(int index)
-        {
-            this.index = index;
+    @Override
+    public void readFully(long position, byte[] b, int off, int len) throws IOException
+    {
+        int total = 0;
+        while (total < len) {
+            int num = read(position + total, b, off + total, len - total);
+            if (num < 0) {
+                throw new EOFException("Reached the end of " + path + " at position "
+                        + (position + total));
+            }
+            total += num;
         }
+    }
 
-        @Override
-        public void run()
+    @Override
+    public void readFully(long position, byte[] b) throws IOException
+    {
+        readFully(position, b, 0, b.length);
+    }
+
+    /**
+     * Makes the next chunk the current one. Only the last chunk of the
+     * layout is the end of the file, a chunk missing before it means the
+     * file was truncated or reclaimed under the stream.
+     *
+     * @return false at the end of the file
+     */
+    private boolean nextBlock() throws IOException
+    {
+        checkOpen();
+        try
         {
-            int tmpIndex = index;
-            try {
-                LOGGER.debug("Started cleaning unused chunks of file: " + uuid);
-                while(true)
-                {
-                    String chunkName = uuid + "_$" + tmpIndex;
-                    if(!facade.exist(chunkName, FSConstants.FileDataCF))
-                    {
-                        LOGGER.debug("Clean completed: " + uuid);
-                        break;
-                    }
-                    LOGGER.debug("Cleaning chunk: " + chunkName + "...");
-                    try
-                    {
-                        facade.delete(chunkName, FSConstants.FileDataCF, FSConstants.ChunkAttr);
-                        LOGGER.debug("Cleaning chunk: " + chunkName + " succeeded");
-                    }
-                    catch(Exception e)
-                    {
-                        LOGGER.debug("failed");
-                    }
-                    tmpIndex++;
-                }
-            } catch (IOException ex) {
-                LOGGER.debug("Error cleaning fragmented chunks for file: " + uuid + "_$" + (tmpIndex-1));
+            if(numOfChunksAcquired == numOfChunks)
+                return false;
+
+            byte[] bytes = readAhead.take(numOfChunksAcquired);
+            if(bytes == null)
+                throw missingChunk(numOfChunksAcquired, null);
+            numOfChunksAcquired++;
+            curBlock = bytes;
+            curPos = Math.min(seekOffset, bytes.length);
+            seekOffset = 0;
+            LOGGER.debug("Chunk length: " + bytes.length);
+            // an empty chunk would look like the end of the file to the callers
+            return curPos < bytes.length || nextBlock();
+        } catch (IOException e) {
+            if (e.getCause() instanceof NotFoundException) {
+                throw missingChunk(numOfChunksAcquired, e);
+            } else {
+                throw e;
             }
         }
     }
+
+    private IOException missingChunk(int index, Throwable cause)
+    {
+        return new IOException("Missing chunk " + index + " of " + numOfChunks + " of file " + uuid
+                + " (" + path + ")", cause);
+    }
+
+    /**
+     * Moves to the end of the file without fetching anything.
+     */
+    private void endOfFile()
+    {
+        numOfChunksAcquired = numOfChunks;
+        seekOffset = 0;
+        curBlock = new byte[0];
+        curPos = 0;
+    }
+
+    private void checkOpen() throws IOException
+    {
+        if (closed) {
+            throw new IOException("Stream closed: " + path);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        readAhead.close();
+        lane.close();
+    }
 }
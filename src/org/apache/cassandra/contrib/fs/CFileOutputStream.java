@@ -0,0 +1,561 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.cassandra.contrib.fs.util.Bytes;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes a file block by block as the data comes in.
+ *
+ * Every block that fills up is sealed and handed over to an
+ * {@link UploadPipeline}, which writes it in the background while the caller
+ * fills the next one. {@link #close} writes the last block and commits the
+ * FileMeta row. Until the first commit the file does not exist, or keeps its
+ * previous metadata when it is being replaced. A replaced file is written to a
+ * new generation of FileData rows and the commit switches FileMeta over to it
+ * in one mutation, so readers never see blocks of both versions.
+ *
+ * {@link #flush} waits for the sealed blocks, writes the partial last block and
+ * commits FileMeta, so readers see everything written so far. The partial block
+ * is written again when it fills up, so flushing is meant for occasional
+ * durability points rather than every record.
+ *
+ * A file that ends below the inline threshold before any block was written is
+ * stored inline in FileMeta. After a failure the stream can only be closed or
+ * aborted, which reclaims the chunks it wrote that no committed FileMeta
+ * refers to. Every commit reclaims the chunks the FileMeta row no longer
+ * refers to; with deduplicated blocks that means releasing the references of
+ * the blocks replaced.
+ *
+ * When appending, the stream starts with the last partial block of the file
+ * and adds new blocks after it. Only the sub-blocks that change are written
+ * again and a commit only updates Length and LastModifiedTime, so appending
+ * costs work in proportion to the new data. A file has one writer at a time.
+ *
+ * A stream opened by a {@link FileBatch} leaves the FileMeta mutation of
+ * {@link #close} to the batch, which commits many files at once.
+ */
+public class CFileOutputStream extends OutputStream
+{
+    private static Logger LOGGER = Logger.getLogger(CFileOutputStream.class);
+    private final CassandraFacade facade;
+    private final Path filePath;
+    private final FileLayout previous;
+    private final BufferPool pool;
+    private final boolean append;
+    private final boolean inlineAllowed;
+    // commits the metadata on close, null to commit it right away
+    private final FileBatch batch;
+    // whether the codec of the layout is settled
+    private boolean codecChosen;
+    private FileLayout layout;
+    private UploadPipeline pipeline;
+    // block being filled, null until the next write
+    private ByteBuffer buffer;
+    // index of the block being filled
+    private int index = 0;
+    private long length = 0;
+    // bytes at the start of the current block that are already stored
+    private int stored = 0;
+    private boolean partialWritten = false;
+    // whether anything was written since the last commit
+    private boolean dirty = false;
+    // row keys the committed FileMeta refers to, by index, and their layout
+    private FileLayout committedLayout;
+    private final TreeMap<Integer, String> committedKeys = new TreeMap<>();
+    // row keys of the blocks written since the last commit
+    private final TreeMap<Integer, String> uncommitted = new TreeMap<>();
+    // row keys of the blocks the metadata being committed refers to
+    private List<String> committing;
+    // CreationTime and LastModifiedTime of the file as last committed
+    private long created;
+    private long modified;
+    private boolean committed = false;
+    private boolean closed = false;
+    private IOException failure;
+    private final byte[] single = new byte[1];
+
+    /**
+     * @param previous the layout of the file being replaced or appended to,
+     *            null if there is none yet
+     * @param append whether to write after the content of
+     *            <code>previous</code> instead of replacing it
+     * @param blockSize the block size of a new layout, blocks already written
+     *            keep theirs
+     */
+    CFileOutputStream(CassandraFacade facade, String path, String uuid, FileLayout previous, boolean append,
+            int blockSize) throws IOException
+    {
+        this(facade, path, uuid, previous, append, blockSize, null);
+    }
+
+    /**
+     * @param batch the batch that commits the metadata when the stream is
+     *            closed, null to commit it right away
+     */
+    CFileOutputStream(CassandraFacade facade, String path, String uuid, FileLayout previous, boolean append,
+            int blockSize, FileBatch batch) throws IOException
+    {
+        this.facade = facade;
+        this.batch = batch;
+        this.filePath = new Path(path);
+        this.previous = previous;
+        this.pool = facade.getBufferPool();
+        this.append = append && previous != null;
+        this.committedLayout = previous;
+        if (previous != null && previous.getVersion() != FileLayout.Inline) {
+            for (int i = 0; i < previous.getNumOfChunks(); i++)
+                committedKeys.put(i, previous.chunkKey(i));
+        }
+        // blocks already written stay where they are
+        this.inlineAllowed = !this.append || previous.getVersion() == FileLayout.Inline;
+        // the blocks written already keep their codec
+        this.codecChosen = this.append && previous.getVersion() != FileLayout.Inline;
+        if (this.append) {
+            byte[] creationTime = facade.get(FSConstants.FileMetaCF, uuid, FSConstants.CreationTimeAttr);
+            created = creationTime == null ? 0 : Bytes.toLong(creationTime);
+        }
+        if (!this.append) {
+            layout = newLayout(uuid, blockSize);
+        }
+        else if (previous.getVersion() == FileLayout.Inline) {
+            layout = newLayout(uuid, blockSize);
+            write(previous.readChunk(facade, 0));
+        }
+        else {
+            layout = previous;
+            length = previous.getLength();
+            index = (int) (length / layout.getBlockSize());
+            stored = (int) (length % layout.getBlockSize());
+            if (stored > 0)
+                prefill();
+        }
+        dirty = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        checkOpen();
+        try {
+            while (len > 0) {
+                ByteBuffer block = block();
+                int num = Math.min(len, block.remaining());
+                block.put(b, off, num);
+                off += num;
+                len -= num;
+                length += num;
+                dirty = true;
+                if (!block.hasRemaining())
+                    seal();
+            }
+        } catch (IOException | RuntimeException e) {
+            throw fail(e);
+        }
+    }
+
+    /**
+     * Writes everything left in <code>in</code>, reading it straight into the
+     * block buffers.
+     *
+     * @return the number of bytes written
+     */
+    public long transferFrom(InputStream in) throws IOException
+    {
+        checkOpen();
+        long total = 0;
+        try {
+            while (true) {
+                ByteBuffer block = block();
+                int num = in.read(block.array(), block.arrayOffset() + block.position(), block.remaining());
+                if (num == -1)
+                    break;
+                block.position(block.position() + num);
+                total += num;
+                length += num;
+                dirty = true;
+                if (!block.hasRemaining())
+                    seal();
+            }
+        } catch (IOException | RuntimeException e) {
+            throw fail(e);
+        }
+        return total;
+    }
+
+    /**
+     * Writes every block, the partial last one included, and commits FileMeta.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        checkOpen();
+        try {
+            if (pipeline != null)
+                pipeline.flush();
+            if (buffer != null && buffer.position() > stored) {
+                int offset = storedOffset();
+                ByteBuffer partial = buffer.duplicate();
+                partial.flip();
+                chooseCodec(partial);
+                partial.position(offset);
+                String key = layout.claimChunk(facade, index, partial);
+                uncommitted.put(index, key);
+                layout.writeChunk(facade, key, index, partial, offset);
+                partialWritten = true;
+                stored = buffer.position();
+            }
+            if (dirty || !append)
+                commit(buffer != null && buffer.position() > 0 ? index + 1 : index);
+        } catch (IOException | RuntimeException e) {
+            throw fail(e);
+        }
+    }
+
+    /**
+     * Writes what is left and commits FileMeta. A stream that failed is
+     * aborted instead.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        if (failure != null) {
+            abort();
+            return;
+        }
+        closed = true;
+
+        int chunks;
+        try {
+            if (inlineAllowed && pipeline == null && !partialWritten && FSConstants.InlineThreshold > 0
+                    && length <= FSConstants.InlineThreshold) {
+                byte[] content = buffer == null ? new byte[0] : Arrays.copyOf(buffer.array(), buffer.position());
+                releaseBuffer();
+                layout = FileLayout.inline(layout.getUUID(), content);
+                chunks = 0;
+            }
+            else {
+                if (buffer != null && buffer.position() > stored) {
+                    seal();
+                }
+                else if (buffer != null && buffer.position() > 0) {
+                    // the partial block is already stored as it is
+                    releaseBuffer();
+                    index++;
+                }
+                releaseBuffer();
+                if (pipeline != null)
+                    pipeline.finish();
+                chunks = index;
+            }
+            if (batch != null && (dirty || !append))
+                batch.add(this, prepareCommit(chunks));
+            else if (dirty || !append)
+                commit(chunks);
+        } catch (IOException | RuntimeException e) {
+            IOException ex = fail(e);
+            rollback();
+            throw ex;
+        }
+        LOGGER.debug("File " + filePath.getURL() + " written, " + length + " bytes in " + chunks + " chunks");
+    }
+
+    /**
+     * Gives the file up: nothing more is committed, and the chunks written
+     * by this stream that no committed FileMeta refers to are reclaimed.
+     */
+    public void abort()
+    {
+        if (closed)
+            return;
+        closed = true;
+        rollback();
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * The layout of the file as last committed or prepared.
+     */
+    FileLayout getLayout()
+    {
+        return layout;
+    }
+
+    String getPath()
+    {
+        return filePath.getURL();
+    }
+
+    /**
+     * The entry of the file in its folder as last committed or prepared.
+     */
+    DirEntry getDirEntry()
+    {
+        return new DirEntry(filePath.getParentPath(), filePath.getName(), layout.getUUID(), false, length,
+                created, modified);
+    }
+
+    /**
+     * A layout for blocks written from scratch, in a generation of its own.
+     * The clock of the client makes it unique among concurrent writers.
+     */
+    private FileLayout newLayout(String uuid, int blockSize)
+    {
+        return FileLayout.create(uuid, blockSize).withGeneration(facade.createClock());
+    }
+
+    private ByteBuffer block()
+    {
+        if (buffer == null)
+            buffer = pool.acquire(layout.getBlockSize());
+        return buffer;
+    }
+
+    /**
+     * Hands the current block over to the pipeline.
+     */
+    private void seal() throws IOException
+    {
+        ByteBuffer content = buffer.duplicate();
+        content.flip();
+        chooseCodec(content);
+        if (pipeline == null)
+            pipeline = new UploadPipeline(facade, layout, FSConstants.UploadConcurrency);
+        int offset = storedOffset();
+        ByteBuffer block = buffer;
+        buffer = null;
+        stored = 0;
+        block.flip();
+        block.position(offset);
+        // the pipeline owns the block now, even if this fails
+        pipeline.write(index++, block, offset);
+    }
+
+    /**
+     * Compresses the file with the configured codec if the first block
+     * written compresses well, leaves it uncompressed otherwise.
+     */
+    private void chooseCodec(ByteBuffer first) throws IOException
+    {
+        if (codecChosen)
+            return;
+        codecChosen = true;
+        ChunkCodec codec = ChunkCodec.forConfig(FSConstants.Codec);
+        if (codec.isCompressible(first))
+            layout = layout.withCodec(codec);
+        LOGGER.debug("Blocks of " + filePath.getURL() + " are written with codec " + layout.getCodec());
+    }
+
+    /**
+     * Where writing the current block has to start: the sub-blocks before it
+     * are stored already and did not change since.
+     */
+    private int storedOffset()
+    {
+        if (layout.getVersion() != FileLayout.SubBlocks)
+            return 0;
+        return stored - stored % layout.getSubBlockSize();
+    }
+
+    /**
+     * Loads the last partial block of the file appended to.
+     */
+    private void prefill() throws IOException
+    {
+        byte[] chunk = layout.readChunk(facade, index);
+        if (chunk == null || chunk.length < stored)
+            throw new IOException("Missing block " + layout.chunkKey(index) + " of " + filePath.getURL());
+        block().put(chunk, 0, stored);
+    }
+
+    private void commit(int chunks) throws IOException
+    {
+        Map<String, Map<String, byte[]>> metaData = new HashMap<>();
+        metaData.put(layout.getUUID(), prepareCommit(chunks));
+        Map<String, Collection<String>> deletions = new HashMap<>();
+        if (!droppedColumns().isEmpty())
+            deletions.put(layout.getUUID(), droppedColumns());
+        facade.putFileMeta(metaData, deletions, Collections.singletonList(getDirEntry()));
+        committed();
+    }
+
+    /**
+     * Collects the blocks written so far and builds the FileMeta columns that
+     * commit the first <code>chunks</code> of them.
+     */
+    private Map<String, byte[]> prepareCommit(int chunks) throws IOException
+    {
+        if (pipeline != null)
+            uncommitted.putAll(pipeline.drainWritten());
+        List<String> keys = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            String key = uncommitted.containsKey(i) ? uncommitted.get(i) : committedKeys.get(i);
+            if (key == null)
+                throw new IOException("Block " + i + " of " + filePath.getURL() + " was not written");
+            keys.add(key);
+        }
+        if (layout.getVersion() == FileLayout.Deduplicated)
+            layout = layout.withChunks(length, keys);
+
+        modified = new Date().getTime();
+        byte[] date = Bytes.toBytes(modified);
+
+        Map<String, byte[]> map = new HashMap<>();
+        if (!append) {
+            created = modified;
+            map.put(FSConstants.NameAttr, Bytes.toBytes(filePath.getName()));
+            map.put(FSConstants.PathAttr, Bytes.toBytes(filePath.getParentPath()));
+            map.put(FSConstants.TypeAttr, Bytes.toBytes("File"));
+            map.put(FSConstants.CreationTimeAttr, date);
+            map.put(FSConstants.OwnerAttr, FSConstants.DefaultOwner);
+            map.put(FSConstants.GroupAttr, FSConstants.DefaultGroup);
+            map.put(FSConstants.PermissionsAttr, Bytes.toBytes(0x0777));
+        }
+        map.put(FSConstants.LengthAttr, Bytes.toBytes(length));
+        map.put(FSConstants.LastModifiedTime, date);
+        if (layout != previous)
+            map.putAll(layout.toMeta());
+        committing = keys;
+        return map;
+    }
+
+    /**
+     * The FileMeta columns the commit built by {@link #prepareCommit} must
+     * delete in the same mutation.
+     */
+    List<String> droppedColumns()
+    {
+        // the content of a replaced inline file would outlive it
+        if (!committed && previous != null && previous.getVersion() == FileLayout.Inline
+                && layout.getVersion() != FileLayout.Inline)
+            return Collections.singletonList(FSConstants.DataAttr);
+        return Collections.emptyList();
+    }
+
+    /**
+     * Reclaims what the FileMeta columns built by {@link #prepareCommit}
+     * replaced, once they are written.
+     */
+    void committed() throws IOException
+    {
+        List<String> keys = committing;
+        int chunks = keys.size();
+        committing = null;
+        committed = true;
+        dirty = false;
+        LOGGER.debug("Metadata committed for " + filePath.getURL() + ", length " + length);
+
+        // blocks rewritten in place are the same rows, the others are replaced
+        List<String> replaced = new ArrayList<>();
+        for (Map.Entry<Integer, String> entry : committedKeys.entrySet()) {
+            String key = uncommitted.get(entry.getKey());
+            if (entry.getKey() >= chunks || (key != null && !inPlace(entry.getValue(), key)))
+                replaced.add(entry.getValue());
+        }
+        FileLayout owner = committedLayout;
+        committedLayout = layout;
+        committedKeys.clear();
+        for (int i = 0; i < chunks; i++)
+            committedKeys.put(i, keys.get(i));
+        uncommitted.clear();
+        try {
+            if (owner != null)
+                owner.reclaimKeys(facade, replaced);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to reclaim " + replaced.size() + " chunks replaced in " + filePath.getURL(), e);
+        }
+    }
+
+    /**
+     * Reclaims the chunks written by this stream that no committed FileMeta
+     * refers to. Chunks the committed FileMeta refers to are kept when they
+     * were overwritten in place: dropping them would only lose more of the
+     * file.
+     */
+    void rollback()
+    {
+        releaseBuffer();
+        SortedMap<Integer, String> orphans = new TreeMap<>(uncommitted);
+        if (pipeline != null)
+            orphans.putAll(pipeline.abort());
+        uncommitted.clear();
+        int written = orphans.size();
+        Iterator<Map.Entry<Integer, String>> it = orphans.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, String> entry = it.next();
+            if (committedKeys.containsKey(entry.getKey()) && inPlace(committedKeys.get(entry.getKey()), entry.getValue()))
+                it.remove();
+        }
+
+        LOGGER.warn("Writing " + filePath.getURL() + " failed, reclaiming " + orphans.size()
+                + " of the " + written + " chunks written");
+        try {
+            layout.reclaimKeys(facade, new ArrayList<>(orphans.values()));
+        } catch (IOException e) {
+            LOGGER.warn("Failed to reclaim the chunks of " + layout.getUUID(), e);
+        }
+    }
+
+    /**
+     * Whether the committed row <code>committedKey</code> was rewritten in
+     * place as <code>key</code>. A deduplicated block written again holds a
+     * reference of its own even when its row is the same.
+     */
+    private boolean inPlace(String committedKey, String key)
+    {
+        return committedLayout != null && committedLayout.isKeyedByFile() && layout.isKeyedByFile()
+                && committedKey.equals(key);
+    }
+
+    private void releaseBuffer()
+    {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    private IOException fail(Exception e)
+    {
+        if (failure == null)
+            failure = e instanceof IOException ? (IOException) e
+                    : new IOException("Failed to write " + filePath.getURL(), e);
+        return failure;
+    }
+
+    private void checkOpen() throws IOException
+    {
+        if (closed)
+            throw new IOException("Stream closed: " + filePath.getURL());
+        if (failure != null)
+            throw failure;
+    }
+}
@@ -2,39 +2,55 @@ package org.apache.cassandra.contrib.fs;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import static me.prettyprint.hector.api.factory.HFactory.createColumn;
 import static me.prettyprint.hector.api.factory.HFactory.createColumnQuery;
 import static me.prettyprint.hector.api.factory.HFactory.createKeyspace;
 import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
 import static me.prettyprint.hector.api.factory.HFactory.getOrCreateCluster;
 
 import java.util.Iterator;
 import java.util.Map;
 import java.util.UUID;
-import me.prettyprint.cassandra.model.CqlQuery;
-import me.prettyprint.cassandra.model.CqlRows;
+import me.prettyprint.cassandra.model.IndexedSlicesQuery;
+import me.prettyprint.cassandra.model.MultigetCountQuery;
 import org.apache.log4j.Logger;
 
 import me.prettyprint.cassandra.serializers.StringSerializer;
 import me.prettyprint.cassandra.serializers.BytesArraySerializer;
+import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
 
 
 import me.prettyprint.cassandra.serializers.DateSerializer;
 import me.prettyprint.cassandra.serializers.LongSerializer;
 import me.prettyprint.cassandra.service.CassandraHostConfigurator;
+import me.prettyprint.cassandra.service.FailoverPolicy;
 import me.prettyprint.hector.api.Cluster;
 import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.beans.ColumnSlice;
+import me.prettyprint.hector.api.beans.CounterRow;
+import me.prettyprint.hector.api.beans.CounterRows;
+import me.prettyprint.hector.api.beans.HCounterColumn;
 import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.OrderedRows;
 import me.prettyprint.hector.api.beans.Row;
 import me.prettyprint.hector.api.beans.Rows;
 import me.prettyprint.hector.api.mutation.Mutator;
 import me.prettyprint.hector.api.query.ColumnQuery;
+import me.prettyprint.hector.api.query.MultigetSliceCounterQuery;
 import me.prettyprint.hector.api.query.MultigetSliceQuery;
 import me.prettyprint.hector.api.query.QueryResult;
+import me.prettyprint.hector.api.query.RangeSlicesQuery;
+import me.prettyprint.hector.api.query.SliceQuery;
 import me.prettyprint.hector.api.exceptions.*;
 import me.prettyprint.hector.api.factory.HFactory;
 import me.prettyprint.hector.api.query.CountQuery;
@@ -52,6 +68,20 @@ public class CassandraFacade
     private FSConsistencyLevelPolicy cLevel;
     private static Logger LOGGER = Logger.getLogger(CassandraFacade.class);
     private static CassandraFacade instance;
+    // DirEntries columns read per slice when listing a folder
+    private final static int DirEntriesPageSize = 1000;
+    // the FileMeta columns a DirEntry is built from
+    private final static String[] IndexedChildColumns = { FSConstants.NameAttr, FSConstants.PathAttr,
+            FSConstants.TypeAttr, FSConstants.LengthAttr, FSConstants.CreationTimeAttr, FSConstants.LastModifiedTime,
+            FSConstants.OwnerAttr, FSConstants.GroupAttr, FSConstants.PermissionsAttr };
+    // the FileMeta columns getChildren reads by default, everything but Data
+    private final static String[] ChildColumns = { FSConstants.NameAttr, FSConstants.PathAttr,
+            FSConstants.TypeAttr, FSConstants.LengthAttr, FSConstants.CreationTimeAttr, FSConstants.LastModifiedTime,
+            FSConstants.OwnerAttr, FSConstants.GroupAttr, FSConstants.PermissionsAttr, FSConstants.LayoutAttr,
+            FSConstants.SubBlockSizeAttr, FSConstants.ChunksAttr, FSConstants.CodecAttr, FSConstants.BlockSizeAttr,
+            FSConstants.GenerationAttr };
+    // FileMeta rows read per multiget when reading the children of a folder
+    private final static int ChildrenBatchSize = 500;
     private CassandraHostConfigurator cassandraHostConfigurator;
     private Cluster cluster;
     private final Serializer<byte[]> hectorByteSerializer = BytesArraySerializer.get();
@@ -61,7 +91,15 @@ public class CassandraFacade
     private final BytesArraySerializer byteSerializer = BytesArraySerializer.get();
     private final DateSerializer dateSerializer = DateSerializer.get();
     private final LongSerializer longSerializer = LongSerializer.get();
+    private final ByteBufferSerializer byteBufferSerializer = ByteBufferSerializer.get();
     private Keyspace keyspace;
+    // counter updates are not idempotent, this one never fails over
+    private Keyspace counterKeyspace;
+    private IOScheduler scheduler;
+    private ChunkReclaimer reclaimer;
+    private ChunkCache chunkCache;
+    private PathCache pathCache;
+    private BufferPool bufferPool;
 
     public static CassandraFacade getInstance() throws IOException
     {
@@ -89,6 +127,18 @@ public class CassandraFacade
         cassandraHostConfigurator.setCassandraThriftSocketTimeout(conf.getCassandraThriftSocketTimeout());
         cassandraHostConfigurator.setMaxWaitTimeWhenExhausted(conf.getMaxWaitTimeWhenExhausted());
         FSConstants.BlockSize = conf.getBlockSize();
+        FSConstants.MinBlockSize = Math.min(conf.getMinBlockSize(), FSConstants.BlockSize);
+        FSConstants.ReadAheadChunks = conf.getReadAheadChunks();
+        FSConstants.ReadAheadBytes = conf.getReadAheadBytes();
+        FSConstants.SubBlockSize = conf.getSubBlockSize();
+        // an inline file must fit in the first block
+        FSConstants.InlineThreshold = Math.min(conf.getInlineThreshold(), FSConstants.BlockSize - 1);
+        FSConstants.UploadConcurrency = conf.getUploadConcurrency();
+        FSConstants.AsyncMaxInFlight = conf.getAsyncMaxInFlight();
+        FSConstants.AsyncThreads = conf.getAsyncThreads();
+        FSConstants.VirtualThreads = conf.useVirtualThreads();
+        FSConstants.Dedup = conf.useDedup();
+        FSConstants.Codec = ChunkCodec.forConfig(conf.getCodec()).getName();
 
         cluster = getOrCreateCluster("CassandraFS", conf.getHosts());
         keyspace = createKeyspace(FSConstants.KeySpace, cluster);
@@ -97,6 +147,15 @@ public class CassandraFacade
                 conf.getReadConsistency(),
                 conf.getWriteConsistency());
         keyspace.setConsistencyLevelPolicy(cLevel);
+        counterKeyspace = createKeyspace(FSConstants.KeySpace, cluster, cLevel, FailoverPolicy.FAIL_FAST);
+
+        scheduler = new IOScheduler(conf.getIOThreads(), FSConstants.VirtualThreads);
+        reclaimer = new ChunkReclaimer(this, scheduler, conf.getReclaimBatchSize(), conf.getReclaimRowsPerSecond(),
+                conf.getReclaimDelayMillis());
+        chunkCache = new ChunkCache(conf.getChunkCacheBytes(), createDiskChunkCache(conf));
+        bufferPool = new BufferPool(conf.getBufferPoolBytes());
+        pathCache = new PathCache(conf.getPathCacheSize(), conf.getPathCacheTtlMillis());
+        reclaimer.start();
     }
 
     ////////////////////////////////////
@@ -108,6 +167,23 @@ public class CassandraFacade
         LOGGER.debug("Bytes written to Cassandra: " + value.length);
     }
 
+    /**
+     * Inserts columns whose values are taken from the buffers as they are,
+     * from position to limit, without copying them.
+     */
+    public void putColumns(String key, String columnFamily, Map<String, ByteBuffer> columns) throws IOException
+    {
+        Mutator<String> m = createMutator(keyspace, serializer);
+        long bytes = 0;
+        for (Map.Entry<String, ByteBuffer> column : columns.entrySet()) {
+            m.addInsertion(key, columnFamily, createColumn(column.getKey(), column.getValue(),
+                    keyspace.createClock(), serializer, byteBufferSerializer));
+            bytes += column.getValue().remaining();
+        }
+        m.execute();
+        LOGGER.debug("Bytes written to Cassandra: " + bytes);
+    }
+
     // Support only one superColumnOnly at one time
     public void batchPutSingleRow(String key, String cfName, String colName, Map<String, byte[]> map) throws IOException
     {
@@ -119,6 +195,65 @@ public class CassandraFacade
         insertMulti(map, cfName, serializer);
     }
 
+    /**
+     * Writes FileMeta rows, the entries that list them in their parent
+     * folders and the PathIndex rows of their paths in one batch mutation.
+     */
+    public void putFileMeta(Map<String, Map<String, byte[]>> meta, Collection<DirEntry> entries) throws IOException
+    {
+        putFileMeta(meta, Collections.<String, Collection<String>>emptyMap(), entries);
+    }
+
+    /**
+     * Same as putFileMeta, and deletes the FileMeta columns
+     * <code>deletions</code> maps UUIDs to in the same mutation.
+     */
+    public void putFileMeta(Map<String, Map<String, byte[]>> meta, Map<String, Collection<String>> deletions,
+            Collection<DirEntry> entries) throws IOException
+    {
+        Mutator<String> m = createMutator(keyspace, serializer);
+        addInsertions(m, meta, FSConstants.FileMetaCF);
+        for (Map.Entry<String, Collection<String>> row : deletions.entrySet()) {
+            for (String column : row.getValue())
+                m.addDeletion(row.getKey(), FSConstants.FileMetaCF, column, serializer);
+        }
+        for (DirEntry entry : entries) {
+            if (!entry.getParent().equals(""))
+                m.addInsertion(entry.getParent(), FSConstants.DirEntriesCF,
+                        createColumn(entry.getName(), entry.pack(), keyspace.createClock(), serializer, byteSerializer));
+            m.addInsertion(entry.getPath(), FSConstants.PathIndexCF,
+                    createColumn(FSConstants.UUIDAttr, Bytes.toBytes(entry.getUUID()), keyspace.createClock(),
+                    serializer, byteSerializer));
+            m.addInsertion(entry.getPath(), FSConstants.PathIndexCF,
+                    createColumn(FSConstants.TypeAttr, Bytes.toBytes(entry.isDir() ? "Folder" : "File"),
+                    keyspace.createClock(), serializer, byteSerializer));
+        }
+        if (!meta.isEmpty() || !deletions.isEmpty() || !entries.isEmpty())
+            m.execute();
+        for (DirEntry entry : entries)
+            pathCache.put(entry.getPath(), entry.getUUID(), entry.isDir());
+    }
+
+    /**
+     * Deletes the FileMeta row of the file or folder at <code>path</code>, its
+     * entry in the parent folder and its PathIndex row, in one batch mutation.
+     * The DirEntries row of a folder goes with it.
+     */
+    public void deleteFileMeta(String uuid, String path, boolean isDir) throws IOException
+    {
+        Path element = new Path(path);
+        Mutator<String> m = createMutator(keyspace, serializer);
+        m.addDeletion(uuid, FSConstants.FileMetaCF);
+        if (!element.getParentPath().equals(""))
+            m.addDeletion(element.getParentPath(), FSConstants.DirEntriesCF, element.getName(), serializer);
+        if (isDir)
+            m.addDeletion(path, FSConstants.DirEntriesCF);
+        m.addDeletion(path, FSConstants.PathIndexCF);
+        m.execute();
+        pathCache.invalidate(path);
+        LOGGER.debug("Metadata removed: " + path);
+    }
+
     ////////////////////////////////////
     /////////// Get Functions   ////////
     ////////////////////////////////////
@@ -131,6 +266,188 @@ public class CassandraFacade
         return result;
     }
 
+    /**
+     * Reads several columns of one row in a single query, missing columns are
+     * left out of the result.
+     */
+    public Map<String, byte[]> getColumns(String columnFamily, String key, String... columns) throws IOException
+    {
+        SliceQuery<String, String, byte[]> q = createSliceQuery(keyspace, serializer, serializer, byteSerializer);
+        q.setColumnFamily(columnFamily);
+        q.setKey(key);
+        q.setColumnNames(columns);
+
+        Map<String, byte[]> result = new HashMap<>();
+        QueryResult<ColumnSlice<String, byte[]>> r = q.execute();
+        if (r == null || r.get() == null)
+            return result;
+        for (HColumn<String, byte[]> c : r.get().getColumns())
+            result.put(c.getName(), c.getValue());
+        return result;
+    }
+
+    /**
+     * Reads several columns of several rows in one round trip. Rows without
+     * any of them are left out.
+     */
+    public Map<String, Map<String, byte[]>> getColumns(String columnFamily, Collection<String> keys, String... columns)
+            throws IOException
+    {
+        MultigetSliceQuery<String, String, byte[]> q = HFactory.createMultigetSliceQuery(keyspace, serializer, serializer, byteSerializer);
+        q.setColumnFamily(columnFamily);
+        q.setKeys(keys);
+        q.setColumnNames(columns);
+
+        Map<String, Map<String, byte[]>> result = new HashMap<>();
+        QueryResult<Rows<String, String, byte[]>> r = q.execute();
+        if (r == null || r.get() == null)
+            return result;
+        for (Row<String, String, byte[]> row : r.get()) {
+            if (row.getColumnSlice().getColumns().isEmpty())
+                continue;
+            Map<String, byte[]> values = new HashMap<>();
+            for (HColumn<String, byte[]> c : row.getColumnSlice().getColumns())
+                values.put(c.getName(), c.getValue());
+            result.put(row.getKey(), values);
+        }
+        return result;
+    }
+
+    /**
+     * The keys of at most count rows, from <code>startKey</code> on in the
+     * order of the partitioner, each with the timestamp of its first column.
+     * Deleted rows that still show up in the range have a null timestamp.
+     */
+    public LinkedHashMap<String, Long> getRowKeys(String columnFamily, String startKey, int count) throws IOException
+    {
+        RangeSlicesQuery<String, String, byte[]> q = HFactory.createRangeSlicesQuery(keyspace, serializer, serializer, byteSerializer);
+        q.setColumnFamily(columnFamily);
+        q.setKeys(startKey, "");
+        q.setRange("", "", false, 1);
+        q.setRowCount(count);
+
+        LinkedHashMap<String, Long> result = new LinkedHashMap<>();
+        QueryResult<OrderedRows<String, String, byte[]>> r = q.execute();
+        if (r == null || r.get() == null)
+            return result;
+        for (Row<String, String, byte[]> row : r.get().getList()) {
+            List<HColumn<String, byte[]>> columns = row.getColumnSlice().getColumns();
+            result.put(row.getKey(), columns.isEmpty() ? null : columns.get(0).getClock());
+        }
+        return result;
+    }
+
+    /**
+     * Counts the columns of several rows in one round trip, stopping at max
+     * per row. Missing rows count 0.
+     */
+    public Map<String, Integer> countColumns(String columnFamily, Collection<String> keys, int max) throws IOException
+    {
+        MultigetCountQuery<String, String> q = new MultigetCountQuery<>(keyspace, serializer, serializer);
+        q.setColumnFamily(columnFamily);
+        q.setKeys(keys.toArray(new String[keys.size()]));
+        q.setRange("", "", max);
+
+        QueryResult<Map<String, Integer>> r = q.execute();
+        if (r == null || r.get() == null)
+            return new HashMap<>();
+        return r.get();
+    }
+
+    /**
+     * Reads at most count columns of one row, from start to finish inclusive,
+     * in column order.
+     */
+    public List<byte[]> getSlice(String columnFamily, String key, String start, String finish, int count) throws IOException
+    {
+        SliceQuery<String, String, byte[]> q = createSliceQuery(keyspace, serializer, serializer, byteSerializer);
+        q.setColumnFamily(columnFamily);
+        q.setKey(key);
+        q.setRange(start, finish, false, count);
+
+        List<byte[]> result = new ArrayList<>();
+        QueryResult<ColumnSlice<String, byte[]>> r = q.execute();
+        if (r == null || r.get() == null)
+            return result;
+        long bytes = 0;
+        for (HColumn<String, byte[]> c : r.get().getColumns()) {
+            result.add(c.getValue());
+            bytes += c.getValue().length;
+        }
+        LOGGER.debug("Bytes read from Cassandra: " + bytes);
+        return result;
+    }
+
+    /**
+     * Reads at most count columns, from start to finish inclusive, of several
+     * rows in one round trip. Rows without such columns are left out.
+     */
+    public Map<String, List<byte[]>> multigetSlice(String columnFamily, Collection<String> keys,
+            String start, String finish, int count) throws IOException
+    {
+        MultigetSliceQuery<String, String, byte[]> q = HFactory.createMultigetSliceQuery(keyspace, serializer, serializer, byteSerializer);
+        q.setColumnFamily(columnFamily);
+        q.setKeys(keys);
+        q.setRange(start, finish, false, count);
+
+        Map<String, List<byte[]>> result = new HashMap<>();
+        QueryResult<Rows<String, String, byte[]>> r = q.execute();
+        if (r == null || r.get() == null)
+            return result;
+        long bytes = 0;
+        for (Row<String, String, byte[]> row : r.get()) {
+            List<HColumn<String, byte[]>> columns = row.getColumnSlice().getColumns();
+            if (columns.isEmpty())
+                continue;
+            List<byte[]> values = new ArrayList<>(columns.size());
+            for (HColumn<String, byte[]> c : columns) {
+                values.add(c.getValue());
+                bytes += c.getValue().length;
+            }
+            result.put(row.getKey(), values);
+        }
+        LOGGER.debug("Bytes read from Cassandra: " + bytes + " in " + result.size() + " rows");
+        return result;
+    }
+
+    /**
+     * Adds the delta of every row to its counter <code>column</code>, in one
+     * mutation. Counter updates are not idempotent, so the mutation goes
+     * through a keyspace that fails fast: a timeout is reported instead of
+     * being retried on another host, which could count the delta twice.
+     */
+    public void addCounters(String columnFamily, Map<String, Long> deltas, String column) throws IOException
+    {
+        Mutator<String> m = createMutator(counterKeyspace, serializer);
+        for (Map.Entry<String, Long> delta : deltas.entrySet())
+            m.addCounter(delta.getKey(), columnFamily, HFactory.createCounterColumn(column, delta.getValue(), serializer));
+        if (!deltas.isEmpty())
+            m.execute();
+    }
+
+    /**
+     * Reads the counter <code>column</code> of several rows in one round
+     * trip. Rows without it are left out.
+     */
+    public Map<String, Long> getCounters(String columnFamily, Collection<String> keys, String column) throws IOException
+    {
+        MultigetSliceCounterQuery<String, String> q = HFactory.createMultigetSliceCounterQuery(keyspace, serializer, serializer);
+        q.setColumnFamily(columnFamily);
+        q.setKeys(keys);
+        q.setColumnNames(column);
+
+        Map<String, Long> result = new HashMap<>();
+        QueryResult<CounterRows<String, String>> r = q.execute();
+        if (r == null || r.get() == null)
+            return result;
+        for (CounterRow<String, String> row : r.get()) {
+            HCounterColumn<String> c = row.getColumnSlice().getColumnByName(column);
+            if (c != null)
+                result.put(row.getKey(), c.getValue());
+        }
+        return result;
+    }
+
     ////////////////////////////////////
     /////////// Delete Functions   /////
     ////////////////////////////////////
@@ -147,6 +464,66 @@ public class CassandraFacade
         delete(columnFamily, column, serializer, key);
     }
 
+    /**
+     * Deletes whole rows in one mutation, each with its own timestamp so that
+     * columns written after it survive.
+     */
+    public void deleteRows(String columnFamily, Map<String, Long> keysWithClock) throws IOException
+    {
+        Mutator<String> m = createMutator(keyspace, serializer);
+        for (Map.Entry<String, Long> entry : keysWithClock.entrySet())
+            m.addDeletion(entry.getKey(), columnFamily, entry.getValue());
+        if (!keysWithClock.isEmpty())
+            m.execute();
+        LOGGER.debug("Rows removed: " + keysWithClock.size() + ", from CL: " + columnFamily);
+    }
+
+    public long createClock()
+    {
+        return keyspace.createClock();
+    }
+
+    /**
+     * The workers every chunk transfer of this client runs on.
+     */
+    public IOScheduler getIOScheduler()
+    {
+        return scheduler;
+    }
+
+    public ChunkReclaimer getChunkReclaimer()
+    {
+        return reclaimer;
+    }
+
+    public ChunkCache getChunkCache()
+    {
+        return chunkCache;
+    }
+
+    public PathCache getPathCache()
+    {
+        return pathCache;
+    }
+
+    public BufferPool getBufferPool()
+    {
+        return bufferPool;
+    }
+
+    private static DiskChunkCache createDiskChunkCache(ClientConfiguration conf)
+    {
+        String dir = conf.getDiskCacheDir();
+        if (dir == null)
+            return null;
+        try {
+            return new DiskChunkCache(new File(dir), conf.getDiskCacheSegmentBytes(), conf.getDiskCacheSegments());
+        } catch (IOException ex) {
+            LOGGER.warn("Disk chunk cache disabled, can not open " + dir, ex);
+            return null;
+        }
+    }
+
     ////////////////////////////////////
     /////////// Lookup Functions   /////
     ////////////////////////////////////
@@ -160,85 +537,157 @@ public class CassandraFacade
     
     public boolean existsFile(String path) throws IOException
     {
-        Path element = new Path(path);
-        String query = "SELECT COUNT(*) FROM FileMeta WHERE Name = '"+element.getName()+"' AND Path = '"+element.getParentPath()+"' AND 'Type' = 'File'";
-        CqlQuery<String,String,Long> cqlQuery = new CqlQuery<>(keyspace, hectorStringSerializer, hectorStringSerializer, hectorLongSerializer);
-        cqlQuery.setQuery(query);
-        QueryResult<CqlRows<String,String,Long>> result = cqlQuery.execute();
-        if(result == null) return false;
-        return result.get().getAsCount() > 0;
+        return "File".equals(getType(path));
     }
 
     public boolean existDir(String path) throws IOException
     {
-        Path element = new Path(path);
-        String query = "SELECT COUNT(*) FROM FileMeta WHERE Name = '"+ element.getName() +"' AND Path = '"+element.getParentPath()+"' AND 'Type' = 'Folder'";
-        CqlQuery<String,String,Long> cqlQuery = new CqlQuery<>(keyspace, hectorStringSerializer, hectorStringSerializer, hectorLongSerializer);
-        cqlQuery.setQuery(query);
-        QueryResult<CqlRows<String,String,Long>> result = cqlQuery.execute();
-        if(result == null) return false;
-        return result.get().getAsCount() > 0;
+        return "Folder".equals(getType(path));
+    }
+
+    /**
+     * The type of what is at <code>path</code>, File or Folder, or null if
+     * there is nothing there.
+     */
+    public String getType(String path) throws IOException
+    {
+        PathCache.Resolved resolved = resolve(path);
+        if (resolved == null)
+            return null;
+        return resolved.isDir() ? "Folder" : "File";
     }
 
     public List<Path> list(String path, boolean listFolder) throws IOException
     {
         List<Path> children = new ArrayList<>();
-
-        String query = "";
-        if (listFolder)
-            query = "SELECT * FROM FileMeta WHERE Path = '"+path+"'";
-        else //search for a specific file
-        {
-            Path element = new Path(path);
-            query = "SELECT * FROM FileMeta WHERE Name = '"+element.getName()+"' AND Path = '"+element.getParentPath()+"'";
+        if (listFolder) {
+            for (DirEntry entry : getDirEntries(path))
+                children.add(entry.toPath());
         }
-            
-        CqlQuery<String,String,byte[]> cqlQuery = new CqlQuery<>(keyspace, hectorStringSerializer, hectorStringSerializer, hectorByteSerializer);
-        cqlQuery.setQuery(query);
-        QueryResult<CqlRows<String,String,byte[]>> result = cqlQuery.execute();
-        if(result == null)
-            return children;
-        try{
-        List<Row<String, String, byte[]>> rows = result.get().getList();
-        for (Row<String, String, byte[]> row : rows)
-        {
-            String uuid = row.getKey();
-            List<HColumn<String, byte[]>> attributes = extractInfoFromRow(row);
-            Path fileInfo = new Path(attributes, uuid);
-            children.add(fileInfo);
+        else if (new Path(path).getParentPath().equals("")) {
+            // the root folder has no parent listing it
+            for (Map.Entry<String, Map<String, byte[]>> root : getIndexedChildren("").entrySet()) {
+                DirEntry entry = DirEntry.fromMeta(root.getKey(), root.getValue());
+                if (entry != null)
+                    children.add(entry.toPath());
+            }
         }
+        else { //search for a specific file
+            DirEntry entry = getDirEntry(path);
+            if (entry != null)
+                children.add(entry.toPath());
         }
-        catch(java.lang.NullPointerException e){}
-        
         return children;
     }
-    
-    public int countDirChildren(String path)
+
+    /**
+     * The entry of the file or folder at <code>path</code> in its parent
+     * folder, or null if there is none.
+     */
+    public DirEntry getDirEntry(String path) throws IOException
     {
-        //check here the shlash at the end!!!!!!!!
-        String query = "SELECT COUNT(*) FROM FileMeta WHERE Path = '"+path+"'";
-        CqlQuery<String,String,Long> cqlQuery = new CqlQuery<>(keyspace, hectorStringSerializer, hectorStringSerializer, hectorLongSerializer);
-        cqlQuery.setQuery(query);
-        QueryResult<CqlRows<String,String,Long>> result = cqlQuery.execute();
-        if(result == null)
-            return 0;
-        else
-            return result.get().getAsCount();
+        Path element = new Path(path);
+        if (element.getParentPath().equals(""))
+            return null;
+        byte[] value = get(FSConstants.DirEntriesCF, element.getParentPath(), element.getName());
+        return value == null ? null : DirEntry.unpack(element.getParentPath(), element.getName(), value);
     }
-    
-    private List<HColumn<String, byte[]>> extractInfoFromRow(Row<String, String, byte[]> row)
+
+    /**
+     * The entries of every child of the folder <code>path</code>, in name
+     * order, read from its DirEntries row a page at a time.
+     */
+    public List<DirEntry> getDirEntries(String path) throws IOException
     {
-        List<HColumn<String, byte[]>> columns = new ArrayList<>();
-        columns.add(row.getColumnSlice().getColumnByName("Name"));
-        columns.add(row.getColumnSlice().getColumnByName("Path"));
-        columns.add(row.getColumnSlice().getColumnByName("Type"));
-        columns.add(row.getColumnSlice().getColumnByName("Length"));
-        columns.add(row.getColumnSlice().getColumnByName("CreationTime"));
-        columns.add(row.getColumnSlice().getColumnByName("LastModifiedTime"));
-        columns.add(row.getColumnSlice().getColumnByName("Owner"));
-        columns.add(row.getColumnSlice().getColumnByName("Group"));
-        columns.add(row.getColumnSlice().getColumnByName("Permissions"));
-        return columns;
+        List<DirEntry> entries = new ArrayList<>();
+        String start = "";
+        while (true) {
+            SliceQuery<String, String, byte[]> q = createSliceQuery(keyspace, serializer, serializer, byteSerializer);
+            q.setColumnFamily(FSConstants.DirEntriesCF);
+            q.setKey(path);
+            q.setRange(start, "", false, DirEntriesPageSize);
+            QueryResult<ColumnSlice<String, byte[]>> r = q.execute();
+            if (r == null || r.get() == null)
+                break;
+            List<HColumn<String, byte[]>> columns = r.get().getColumns();
+            for (HColumn<String, byte[]> c : columns) {
+                // every page after the first starts with the last entry of the previous one
+                if (!start.isEmpty() && c.getName().equals(start))
+                    continue;
+                entries.add(DirEntry.unpack(path, c.getName(), c.getValue()));
+            }
+            if (columns.size() < DirEntriesPageSize)
+                break;
+            start = columns.get(columns.size() - 1).getName();
+        }
+        return entries;
+    }
+
+    /**
+     * The FileMeta columns named <code>columns</code> of every child of the
+     * folder <code>path</code>, keyed by the UUID of the child. The children
+     * are found in the DirEntries row of the folder and their rows read with
+     * multigets of at most <code>ChildrenBatchSize</code> keys, so a large
+     * folder is never read in one response. Without columns, the columns of
+     * a DirEntry and of a FileLayout are read, except the Data of inline
+     * files.
+     */
+    public Map<String, Map<String, byte[]>> getChildren(String path, String... columns) throws IOException
+    {
+        if (columns.length == 0)
+            columns = ChildColumns;
+        List<String> uuids = new ArrayList<>();
+        for (DirEntry entry : getDirEntries(path))
+            uuids.add(entry.getUUID());
+        Map<String, Map<String, byte[]>> children = new HashMap<>();
+        for (int i = 0; i < uuids.size(); i += ChildrenBatchSize)
+            children.putAll(getColumns(FSConstants.FileMetaCF,
+                    uuids.subList(i, Math.min(uuids.size(), i + ChildrenBatchSize)), columns));
+        return children;
+    }
+
+    /**
+     * Same as getChildren, but the children are found through the Path index
+     * of FileMeta, which does not depend on DirEntries. Only the columns of a
+     * DirEntry are read, never the Data of inline files.
+     */
+    public Map<String, Map<String, byte[]>> getIndexedChildren(String path) throws IOException
+    {
+        Map<String, Map<String, byte[]>> children = new HashMap<>();
+        // read in pages, a single query has to hold every row in memory on the server
+        String startKey = "";
+        while (true)
+        {
+            IndexedSlicesQuery<String, String, byte[]> q = new IndexedSlicesQuery<>(keyspace, serializer, serializer, byteSerializer);
+            q.setColumnFamily(FSConstants.FileMetaCF);
+            q.addEqualsExpression(FSConstants.PathAttr, Bytes.toBytes(path));
+            q.setColumnNames(IndexedChildColumns);
+            q.setStartKey(startKey);
+            q.setRowCount(ChildrenBatchSize + 1);
+            QueryResult<OrderedRows<String, String, byte[]>> result = q.execute();
+            if (result == null || result.get() == null)
+                return children;
+            int rows = 0;
+            for (Row<String, String, byte[]> row : result.get().getList())
+            {
+                rows++;
+                startKey = row.getKey();
+                // the start key is the last row of the page before
+                if (children.containsKey(row.getKey()) || row.getColumnSlice().getColumns().isEmpty())
+                    continue;
+                Map<String, byte[]> columns = new HashMap<>();
+                for (HColumn<String, byte[]> c : row.getColumnSlice().getColumns())
+                    columns.put(c.getName(), c.getValue());
+                children.put(row.getKey(), columns);
+            }
+            if (rows <= ChildrenBatchSize)
+                return children;
+        }
+    }
+
+    public int countDirChildren(String path)
+    {
+        return countRow(path, FSConstants.DirEntriesCF, serializer);
     }
 
     ///////////////////////////
@@ -278,7 +727,12 @@ public class CassandraFacade
     public <K> void insertMulti(Map<K, Map<String, byte[]>> columnValues, String cfName, Serializer<K> keySerializer)
     {
         Mutator<K> m = createMutator(keyspace, keySerializer);
+        addInsertions(m, columnValues, cfName);
+        m.execute();
+    }
 
+    private <K> void addInsertions(Mutator<K> m, Map<K, Map<String, byte[]>> columnValues, String cfName)
+    {
         Iterator<K> it = columnValues.keySet().iterator();
 
         while(it.hasNext())
@@ -300,7 +754,6 @@ public class CassandraFacade
                             keyspace.createClock(), serializer, byteSerializer));
             }
         }
-        m.execute();
     }
 
     /**
@@ -396,37 +849,103 @@ public class CassandraFacade
     }
     
 ///////////////////////////////////////////////////////////////
-//////  CQL functions
+//////  Path resolution
     
     /**
-     * There might be problem here because the function will be called at every lookup to 
-     * get the UUID of the file. Could be extended to have a cashe but that will be investigated
-     * later on.
-     * @param path
-     * @return 
+     * The UUID of the FileMeta row of the file or folder at <code>path</code>,
+     * or an empty string if there is none. The path must be normalized, it is
+     * the key of its PathIndex row.
      */
-   
-    public String getRowUUID(String path)
+    public String getRowUUID(String path) throws IOException
     {
-        Path element = new Path(path);
-        String query = "SELECT Name FROM FileMeta WHERE Name = '"+element.getName()+"' AND Path = '"+element.getParentPath()+"'";
-        
-        CqlQuery<String,String,String> cqlQuery = 
-                new CqlQuery<>(keyspace, hectorStringSerializer, hectorStringSerializer, hectorStringSerializer);
-        cqlQuery.setQuery(query);
-        QueryResult<CqlRows<String,String,String>> result = cqlQuery.execute();
-        if(result == null)
+        PathCache.Resolved resolved = resolve(path);
+        if (resolved == null) {
+            LOGGER.debug("No UUID found for path: " + path);
             return "";
-        
-        try{
-            List<Row<String, String, String>> rows = result.get().getList();
+        }
+        return resolved.getUUID();
+    }
+
+    /**
+     * What the file or folder at <code>path</code> resolves to, or null if
+     * there is nothing there. Served from the path cache when it can be.
+     */
+    public PathCache.Resolved resolve(String path) throws IOException
+    {
+        PathCache.Resolved resolved = pathCache.get(path);
+        if (resolved != null)
+            return resolved;
+        Map<String, byte[]> row = getColumns(FSConstants.PathIndexCF, path, FSConstants.UUIDAttr, FSConstants.TypeAttr);
+        if (!row.containsKey(FSConstants.UUIDAttr) || !row.containsKey(FSConstants.TypeAttr))
+            return null;
+        return pathCache.put(path, Bytes.toString(row.get(FSConstants.UUIDAttr)),
+                !Bytes.toString(row.get(FSConstants.TypeAttr)).equals("File"));
+    }
+
+    /**
+     * Same as resolve, but what the path cache serves is checked against the
+     * FileMeta row it points to. An entry of a file or folder another client
+     * deleted or replaced since is dropped and the path resolved again.
+     */
+    public PathCache.Resolved resolveChecked(String path) throws IOException
+    {
+        PathCache.Resolved resolved = pathCache.get(path);
+        if (resolved == null)
+            return resolve(path);
+        byte[] type = get(FSConstants.FileMetaCF, resolved.getUUID(), FSConstants.TypeAttr);
+        if (type != null && Bytes.toString(type).equals("File") != resolved.isDir())
+            return resolved;
+        LOGGER.debug("Cached UUID of '" + path + "' is stale");
+        pathCache.invalidate(path);
+        return resolve(path);
+    }
 
-            if(rows.size() > 0)
-                return rows.get(0).getKey();
+    /**
+     * The layout of the file at <code>path</code>, null if there is no file
+     * there. When the FileMeta row of the UUID the path resolves to is gone,
+     * the UUID came from the path cache and is of a file another client
+     * deleted or replaced since: it is dropped and the path resolved again.
+     */
+    public FileLayout loadFile(String path) throws IOException
+    {
+        for (int attempt = 0; ; attempt++) {
+            PathCache.Resolved resolved = resolve(path);
+            if (resolved == null || resolved.isDir())
+                return null;
+            Map<String, byte[]> meta = getColumns(FSConstants.FileMetaCF, resolved.getUUID(), FileLayout.MetaColumns);
+            if (meta.containsKey(FSConstants.LengthAttr) || attempt > 0)
+                return FileLayout.fromMeta(resolved.getUUID(), meta);
+            LOGGER.debug("Cached UUID of '" + path + "' is stale");
+            pathCache.invalidate(path);
         }
-        catch(NullPointerException e){LOGGER.debug("No UUID found for path: " +path );}
-            
-        return "";
+    }
+
+    /**
+     * What every path resolves to, paths with nothing there are left out. The
+     * paths missing from the path cache are read in one multiget.
+     */
+    public Map<String, PathCache.Resolved> resolveAll(Collection<String> paths) throws IOException
+    {
+        Map<String, PathCache.Resolved> result = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String path : paths) {
+            PathCache.Resolved resolved = pathCache.get(path);
+            if (resolved != null)
+                result.put(path, resolved);
+            else
+                missing.add(path);
+        }
+        if (missing.isEmpty())
+            return result;
+        for (Map.Entry<String, Map<String, byte[]>> row : getColumns(FSConstants.PathIndexCF, missing,
+                FSConstants.UUIDAttr, FSConstants.TypeAttr).entrySet()) {
+            Map<String, byte[]> columns = row.getValue();
+            if (!columns.containsKey(FSConstants.UUIDAttr) || !columns.containsKey(FSConstants.TypeAttr))
+                continue;
+            result.put(row.getKey(), pathCache.put(row.getKey(), Bytes.toString(columns.get(FSConstants.UUIDAttr)),
+                    !Bytes.toString(columns.get(FSConstants.TypeAttr)).equals("File")));
+        }
+        return result;
     }
     
     public static void main(String[] args) throws IOException
@@ -434,8 +953,11 @@ public class CassandraFacade
         CassandraFacade fs = CassandraFacade.getInstance();
         String uuid = UUID.randomUUID().toString();
         System.out.println("UUID: " + uuid);
-        fs.put(uuid, "Name", Bytes.toBytes(new String("testFile")), FSConstants.FileMetaCF);
-        fs.put(uuid, "Path", Bytes.toBytes(new String("/usr/ftylitak")), FSConstants.FileMetaCF);
+        Map<String, byte[]> meta = new HashMap<>();
+        meta.put("Name", Bytes.toBytes(new String("testFile")));
+        meta.put("Path", Bytes.toBytes(new String("/usr/ftylitak")));
+        fs.putFileMeta(Collections.singletonMap(uuid, meta), Collections.singletonList(
+                new DirEntry("/usr/ftylitak", "testFile", uuid, false, 0, 0, 0)));
         String uuidNew = fs.getRowUUID("/usr/ftylitak/testFile");
         System.out.println("UUID new: " + uuidNew);
         
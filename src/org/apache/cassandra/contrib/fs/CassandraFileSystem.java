@@ -3,11 +3,16 @@ package org.apache.cassandra.contrib.fs;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -28,6 +33,11 @@ public class CassandraFileSystem implements IFileSystem {
     private static SimpleDateFormat format = new SimpleDateFormat("yyyy/MM/dd HH:mm");
     private static IFileSystem instance;
     private CassandraFacade facade;
+    // DirEntries columns written per mutation when rebuilding them
+    private final static int RebuildBatchSize = 500;
+    // FileData rows looked at per round trip when sweeping chunks
+    private final static int SweepBatchSize = 500;
+    private final static int SharedKeyLength = 64;
     
     public static IFileSystem getInstance() throws TTransportException,
             IOException {
@@ -42,92 +52,125 @@ public class CassandraFileSystem implements IFileSystem {
     private CassandraFileSystem() throws TTransportException, IOException {
         this.facade = CassandraFacade.getInstance();
         if (!existDir("/")) {
+            // a tree written before DirEntries and PathIndex existed is only
+            // found through the Path index, the root is indexed last so an
+            // interrupted rebuild starts over
+            if (!facade.getIndexedChildren("").isEmpty()) {
+                LOGGER.info("Indexing a tree written before DirEntries and PathIndex existed");
+                long count = rebuildIndexes("/");
+                LOGGER.info("Indexed " + count + " files and folders");
+            }
             mkdir("/");
         }
     }
 
     public void createFile(String path, byte[] content) throws IOException {
-        createFile(path, new ByteArrayInputStream(content) );
+        createFile(path, new ByteArrayInputStream(content), content.length);
     }
 
     @Override
     public void createFile(String path, InputStream in) throws IOException {
+        createFile(path, in, -1);
+    }
+
+    @Override
+    public void createFile(String path, InputStream in, long expectedLength) throws IOException {
+        CFileOutputStream out = create(path, expectedLength, false);
+        try {
+            out.transferFrom(in);
+        } catch (IOException | RuntimeException e) {
+            out.abort();
+            throw e;
+        }
+        out.close();
+        LOGGER.debug("Data imported successfully: " + path + ", byte length: " + out.getLength());
+    }
+
+    /**
+     * Creates every file of <code>files</code>, keyed by path, through one
+     * {@link FileBatch}. The streams are not closed.
+     */
+    @Override
+    public void createFiles(Map<String, InputStream> files) throws IOException {
+        try (FileBatch batch = createBatch()) {
+            for (Map.Entry<String, InputStream> file : files.entrySet()) {
+                batch.createFile(file.getKey(), file.getValue(), -1);
+            }
+        }
+        LOGGER.debug("Data imported successfully: " + files.size() + " files");
+    }
+
+    @Override
+    public FileBatch createBatch() throws IOException {
+        return new FileBatch(facade, this);
+    }
+
+    @Override
+    public CFileOutputStream create(String path) throws IOException {
+        return create(path, -1, false);
+    }
+
+    /**
+     * Opens a stream that writes the file at <code>path</code>, replacing
+     * it if it exists. The block size of the file is picked by
+     * {@link BlockSizeChooser} from what is known about it.
+     *
+     * @param expectedLength the expected length of the file, negative if it
+     *            is not known
+     * @param randomAccess whether the file will mostly be read at random
+     *            offsets
+     */
+    @Override
+    public CFileOutputStream create(String path, long expectedLength, boolean randomAccess) throws IOException {
         PathUtil.checkPath(path);
         path = PathUtil.normalizePath(path);
         Path filePath = new Path(path);
-        if (!existDir(filePath.getParentPath())) {
+        // a folder deleted by another client may still be cached
+        PathCache.Resolved parent = facade.resolveChecked(filePath.getParentPath());
+        if (parent != null && !parent.isDir()) {
+            throw new IOException("'" + filePath.getParentPath() + "' is a file, it can not hold other files");
+        }
+        if (parent == null) {
             mkdir(filePath.getParentPath());
         }
         
         //This will be the unique identifier of the file which will define the row
         //where the data will be stored.
-        String checkPrevUUID = facade.getRowUUID(path);
-        String fileUUID = "";
-        if(checkPrevUUID == "")
-            fileUUID = generateUUID();
-        else
-            fileUUID = checkPrevUUID;
+        FileLayout previous = facade.loadFile(path);
+        String fileUUID = previous == null ? generateUUID() : previous.getUUID();
+        return new CFileOutputStream(facade, path, fileUUID, previous, false,
+                BlockSizeChooser.choose(expectedLength, randomAccess));
+    }
 
-        Map<String, Map<String, byte[]>> metaData = new HashMap<>();
-        long length = 0;
-        int index = 0;
-        int num = 0;
-        while (true) {
-            byte[] buffer = new byte[FSConstants.BlockSize];
-            num = in.read(buffer);
-            LOGGER.debug("Read number of bytes: " + num + " from: " + path);
-            if (num == -1) {break;}
-            
-            byte[] content;
-            if(num == FSConstants.BlockSize)
-                content = buffer;
-            else
-            {
-                content = new byte[num];
-                System.arraycopy(buffer, 0, content, 0, num);
-            }
-            
-            length += num;
-                           
-            LOGGER.debug("Putting path: " + fileUUID + "_$" + index);
-            facade.put(fileUUID + "_$" + index, FSConstants.ChunkAttr, content, FSConstants.FileDataCF);
-            index++;
+    /**
+     * Opens a stream that writes after the end of the file at
+     * <code>path</code>, or creates it if it does not exist. The new length is
+     * committed when the stream is closed.
+     */
+    @Override
+    public CFileOutputStream append(String path) throws IOException {
+        PathUtil.checkPath(path);
+        path = PathUtil.normalizePath(path);
+        FileLayout previous = facade.loadFile(path);
+        if (previous == null) {
+            return create(path);
         }
-        LOGGER.debug("Data imported successfully: " + filePath.getName());
-        LOGGER.debug("Byte length: " + length + ", " + Bytes.toBytes(length));
-        
-        byte[] date = Bytes.toBytes(new Date().getTime());
-        
-        Map<String, byte[]> map = new HashMap<>();
-        map.put(FSConstants.NameAttr, Bytes.toBytes(filePath.getName()));
-        map.put(FSConstants.PathAttr, Bytes.toBytes(filePath.getParentPath()));
-        map.put(FSConstants.TypeAttr, Bytes.toBytes("File"));
-        map.put(FSConstants.LengthAttr, Bytes.toBytes(length));
-        map.put(FSConstants.CreationTimeAttr, date);
-        map.put(FSConstants.LastModifiedTime, date);
-        map.put(FSConstants.OwnerAttr, FSConstants.DefaultOwner);
-        map.put(FSConstants.GroupAttr, FSConstants.DefaultGroup);
-        map.put(FSConstants.PermissionsAttr, Bytes.toBytes(0x0777));
-        metaData.put(fileUUID, map);
-
-        facade.batchPutMultipleRows(metaData, FSConstants.FileMetaCF);
-        LOGGER.debug("Metadata created successfully: " + filePath.getName());
+        return new CFileOutputStream(facade, path, previous.getUUID(), previous, true, FSConstants.BlockSize);
     }
 
     public boolean deleteFile(String path) throws IOException {
         PathUtil.checkPath(path);
         path = PathUtil.normalizePath(path);
-        if (!existFile(path)) {
+        FileLayout layout = facade.loadFile(path);
+        if (layout == null) {
             LOGGER.warn("File '" + path
                     + "' can not been deleted, because it doesn't exist");
             return false;
         }
-        
-        String uuid = facade.getRowUUID(path);
-        
-        facade.delete(uuid, FSConstants.FileMetaCF);
-        for (int i = 0; facade.exist(uuid + "_$" + i, FSConstants.FileDataCF); i++) 
-            facade.delete(uuid + "_$" + i, FSConstants.FileDataCF);        
+
+        facade.deleteFileMeta(layout.getUUID(), path, false);
+        // the reclaimer deletes the chunks in the background
+        layout.reclaimAll(facade);
 
         return true;
     }
@@ -148,7 +191,7 @@ public class CassandraFileSystem implements IFileSystem {
                 return false;
             } else {
                 String uuid = facade.getRowUUID(path);
-                facade.delete(uuid, FSConstants.FileMetaCF);
+                facade.deleteFileMeta(uuid, path, true);
                 return true;
             }
         } else {
@@ -173,6 +216,114 @@ public class CassandraFileSystem implements IFileSystem {
         return new CFileInputStream(path, facade);
     }
 
+    /**
+     * Reads several whole files at once. The paths are resolved through the
+     * path cache and one multiget of their PathIndex rows, their metadata and
+     * the first block of every file are fetched through a multiget each, so a
+     * batch of small files costs a few round trips instead of several per
+     * file, however large their folders are.
+     *
+     * @return the content of every path that is a file, keyed by the path as
+     *         given; paths that are not files are left out
+     */
+    @Override
+    public Map<String, byte[]> readFiles(List<String> paths) throws IOException {
+        // normalized path -> paths asking for it
+        Map<String, List<String>> byPath = new HashMap<>();
+        for (String path : paths) {
+            PathUtil.checkPath(path);
+            String normalized = PathUtil.normalizePath(path);
+            List<String> requested = byPath.get(normalized);
+            if (requested == null) {
+                requested = new ArrayList<>();
+                byPath.put(normalized, requested);
+            }
+            requested.add(path);
+        }
+
+        Map<String, List<String>> byUUID = new HashMap<>();
+        for (Map.Entry<String, PathCache.Resolved> resolved : facade.resolveAll(byPath.keySet()).entrySet()) {
+            if (resolved.getValue().isDir())
+                continue;
+            List<String> requested = byUUID.get(resolved.getValue().getUUID());
+            if (requested == null) {
+                requested = new ArrayList<>();
+                byUUID.put(resolved.getValue().getUUID(), requested);
+            }
+            requested.addAll(byPath.get(resolved.getKey()));
+        }
+
+        Map<String, FileLayout> layouts = new HashMap<>();
+        if (!byUUID.isEmpty()) {
+            for (Map.Entry<String, Map<String, byte[]>> meta : facade.getColumns(FSConstants.FileMetaCF,
+                    byUUID.keySet(), FileLayout.MetaColumns).entrySet()) {
+                FileLayout layout = FileLayout.fromMeta(meta.getKey(), meta.getValue());
+                for (String path : byUUID.get(meta.getKey()))
+                    layouts.put(path, layout);
+            }
+        }
+        LOGGER.debug("Resolved " + layouts.size() + " of " + paths.size() + " files");
+
+        Map<String, byte[]> firstChunks = FileLayout.readFirstChunks(facade, new HashSet<>(layouts.values()));
+        Map<String, byte[]> result = new HashMap<>();
+        for (Map.Entry<String, FileLayout> entry : layouts.entrySet()) {
+            FileLayout layout = entry.getValue();
+            result.put(entry.getKey(), readContent(layout, firstChunks.get(layout.getUUID())));
+        }
+        return result;
+    }
+
+    /**
+     * The whole content of a file whose first block was already read.
+     */
+    private byte[] readContent(FileLayout layout, byte[] firstChunk) throws IOException {
+        if (layout.getLength() == 0)
+            return new byte[0];
+        if (layout.getLength() > Integer.MAX_VALUE - 8)
+            throw new IOException("File is too large to be read at once: " + layout.getUUID());
+        if (firstChunk == null)
+            throw new IOException("Missing chunk " + layout.chunkKey(0));
+        // the block may be the one held by the chunk cache
+        if (firstChunk.length == layout.getLength())
+            return firstChunk.clone();
+
+        byte[] content = new byte[(int) layout.getLength()];
+        System.arraycopy(firstChunk, 0, content, 0, Math.min(firstChunk.length, content.length));
+        for (int i = 1; i < layout.getNumOfChunks(); i++) {
+            byte[] chunk = layout.readChunk(facade, i);
+            if (chunk == null)
+                throw new IOException("Missing chunk " + layout.chunkKey(i));
+            System.arraycopy(chunk, 0, content, i * layout.getBlockSize(),
+                    Math.min(chunk.length, content.length - i * layout.getBlockSize()));
+        }
+        return content;
+    }
+
+    /**
+     * Writes the whole file to <code>out</code>, chunk by chunk as they are
+     * fetched, without intermediate copies.
+     *
+     * @return the number of bytes written
+     */
+    @Override
+    public long transferTo(String path, WritableByteChannel out) throws IOException {
+        try (CFileInputStream in = open(path)) {
+            return in.transferTo(out);
+        }
+    }
+
+    /**
+     * Same as readFile, but the returned stream can seek and read at arbitrary
+     * positions.
+     */
+    @Override
+    public CFileInputStream open(String path) throws IOException {
+        PathUtil.checkPath(path);
+        path = PathUtil.normalizePath(path);
+        LOGGER.debug("Opening file '" + path + "'");
+        return new CFileInputStream(path, facade);
+    }
+
     public boolean mkdir(String path) throws IOException {
         PathUtil.checkPath(path);
         path = PathUtil.normalizePath(path);
@@ -192,7 +343,8 @@ public class CassandraFileSystem implements IFileSystem {
             Map<String, Map<String, byte[]>> metaData = new HashMap<>();
             String uuid = generateUUID();
             
-            byte[] date = Bytes.toBytes(new Date().getTime());
+            long now = new Date().getTime();
+            byte[] date = Bytes.toBytes(now);
             
             Map<String, byte[]> map = new HashMap<>();
             map.put(FSConstants.NameAttr, Bytes.toBytes(folderPath.getName()));
@@ -206,14 +358,19 @@ public class CassandraFileSystem implements IFileSystem {
             map.put(FSConstants.PermissionsAttr, Bytes.toBytes(0x0777));
             metaData.put(uuid, map);
 
-            facade.batchPutMultipleRows(metaData, FSConstants.FileMetaCF);
+            facade.putFileMeta(metaData, Collections.singletonList(
+                    new DirEntry(parent, folderPath.getName(), uuid, true, 0, now, now)));
             LOGGER.debug("Metadata created successfully: " + folderPath.getName());
         }
         else if(parent == null && path.equals("/"))//if creating the root folder '/'
         {
             Map<String, Map<String, byte[]>> metaData = new HashMap<>();
             String uuid = generateUUID();
-            byte[] date = Bytes.toBytes(new Date().getTime());
+            // a root folder written before PathIndex existed is only indexed
+            for (String existing : facade.getIndexedChildren("").keySet())
+                uuid = existing;
+            long now = new Date().getTime();
+            byte[] date = Bytes.toBytes(now);
             
             Map<String, byte[]> map = new HashMap<>();
             map.put(FSConstants.NameAttr, Bytes.toBytes("/"));
@@ -227,7 +384,8 @@ public class CassandraFileSystem implements IFileSystem {
             map.put(FSConstants.PermissionsAttr, Bytes.toBytes(0x0777));
             metaData.put(uuid, map);
 
-            facade.batchPutMultipleRows(metaData, FSConstants.FileMetaCF);
+            // nothing lists the root folder, only its path is indexed
+            facade.putFileMeta(metaData, Collections.singletonList(new DirEntry("", "/", uuid, true, 0, now, now)));
             LOGGER.debug("Metadata created successfully: " + "/");
         }
         LOGGER.debug("Create dir '" + path + "' succesfully");
@@ -258,6 +416,17 @@ public class CassandraFileSystem implements IFileSystem {
         return result;
     }
 
+    /**
+     * The metadata of the file or folder at <code>path</code>, or null if
+     * there is nothing there.
+     */
+    public Path stat(String path) throws IOException {
+        PathUtil.checkPath(path);
+        path = PathUtil.normalizePath(path);
+        List<Path> result = facade.list(path, false);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
     public boolean existDir(String path) throws IOException {
         PathUtil.checkPath(path);
         path = PathUtil.normalizePath(path);
@@ -276,20 +445,165 @@ public class CassandraFileSystem implements IFileSystem {
 
     public int countDirChilden(String path) throws IOException
     {
-        return facade.countDirChildren(path);
+        PathUtil.checkPath(path);
+        return facade.countDirChildren(PathUtil.normalizePath(path));
     }
 
     public void touchFile(String path) throws IOException
     {
         if(existFile(path))
         {
+            path = PathUtil.normalizePath(path);
             String uuid = facade.getRowUUID(path);
-            facade.put(uuid, FSConstants.LastModifiedTime, Bytes.toBytes(new Date().getTime()), FSConstants.FileMetaCF);
+            long now = new Date().getTime();
+            Map<String, Map<String, byte[]>> metaData = new HashMap<>();
+            metaData.put(uuid, Collections.singletonMap(FSConstants.LastModifiedTime, Bytes.toBytes(now)));
+            DirEntry entry = facade.getDirEntry(path);
+            facade.putFileMeta(metaData, entry == null ? Collections.<DirEntry>emptyList()
+                    : Collections.singletonList(entry.withModified(now)));
         }
         else
             createFile(path, "".getBytes());
     }
+
+    /**
+     * Writes the DirEntries rows of the folder <code>path</code> and of every
+     * folder below it, and the PathIndex rows of everything below it, from
+     * FileMeta, found through its Path index. Trees written before DirEntries
+     * and PathIndex existed need this once to be listed and resolved, it runs
+     * when the file system starts on such a tree and from the rebuildIndexes
+     * command of the CLI.
+     *
+     * @return the number of entries written
+     */
+    public long rebuildIndexes(String path) throws IOException {
+        PathUtil.checkPath(path);
+        path = PathUtil.normalizePath(path);
+        List<DirEntry> entries = new ArrayList<>();
+        for (Map.Entry<String, Map<String, byte[]>> child : facade.getIndexedChildren(path).entrySet()) {
+            DirEntry entry = DirEntry.fromMeta(child.getKey(), child.getValue());
+            if (entry != null)
+                entries.add(entry);
+        }
+        Map<String, Map<String, byte[]>> none = Collections.emptyMap();
+        for (int i = 0; i < entries.size(); i += RebuildBatchSize)
+            facade.putFileMeta(none, entries.subList(i, Math.min(entries.size(), i + RebuildBatchSize)));
+
+        long count = entries.size();
+        for (DirEntry entry : entries) {
+            if (entry.isDir())
+                count += rebuildIndexes(entry.getPath());
+        }
+        LOGGER.debug("Rebuilt the entries of '" + path + "'");
+        return count;
+    }
     
+    /**
+     * Queues the FileData rows that no file refers to for deletion: blocks of
+     * deleted files, of replaced generations or past the end of a file, and
+     * deduplicated blocks without references. The chunk reclaimer keeps its
+     * queue in memory only, rows it had not deleted before a restart are
+     * found again this way. Rows written less than
+     * <code>olderThanMillis</code> ago are left alone, they may belong to a
+     * write that is not committed yet.
+     *
+     * @return the number of rows queued
+     */
+    public long sweepChunks(long olderThanMillis) throws IOException {
+        long horizon = facade.createClock() - olderThanMillis * 1000;
+        long queued = 0;
+        String start = "";
+        while (true) {
+            LinkedHashMap<String, Long> rows = facade.getRowKeys(FSConstants.FileDataCF, start, SweepBatchSize);
+            boolean last = rows.size() < SweepBatchSize;
+            if (!start.isEmpty())
+                rows.remove(start);
+            if (rows.isEmpty())
+                break;
+
+            Map<String, List<String>> byFile = new HashMap<>();
+            List<String> shared = new ArrayList<>();
+            for (Map.Entry<String, Long> row : rows.entrySet()) {
+                start = row.getKey();
+                if (row.getValue() == null || row.getValue() > horizon)
+                    continue;
+                String key = row.getKey();
+                if (key.length() == SharedKeyLength && key.indexOf('_') < 0) {
+                    shared.add(key);
+                    continue;
+                }
+                int index = key.lastIndexOf("_$");
+                if (index < 0)
+                    continue;
+                String uuid = key.substring(0, Math.min(index, 36));
+                List<String> keys = byFile.get(uuid);
+                if (keys == null)
+                    byFile.put(uuid, keys = new ArrayList<String>());
+                keys.add(key);
+            }
+            queued += sweepFileChunks(byFile) + sweepSharedChunks(shared);
+            if (last)
+                break;
+        }
+        LOGGER.info("Queued " + queued + " unreferenced chunks for reclamation");
+        return queued;
+    }
+
+    private int sweepFileChunks(Map<String, List<String>> byFile) throws IOException {
+        if (byFile.isEmpty())
+            return 0;
+        Map<String, Map<String, byte[]>> metas = facade.getColumns(FSConstants.FileMetaCF, byFile.keySet(),
+                FileLayout.MetaColumns);
+        List<String> orphans = new ArrayList<>();
+        for (Map.Entry<String, List<String>> file : byFile.entrySet()) {
+            Map<String, byte[]> meta = metas.get(file.getKey());
+            FileLayout layout = meta == null ? null : FileLayout.fromMeta(file.getKey(), meta);
+            for (String key : file.getValue()) {
+                if (layout == null || !isLive(layout, key))
+                    orphans.add(key);
+            }
+        }
+        try {
+            facade.getChunkReclaimer().reclaim(orphans);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sweeping chunks");
+        }
+        return orphans.size();
+    }
+
+    // whether the row key is one of the blocks of the current layout
+    private static boolean isLive(FileLayout layout, String key) {
+        if (!layout.isKeyedByFile())
+            return false;
+        int index;
+        try {
+            index = Integer.parseInt(key.substring(key.lastIndexOf("_$") + 2));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return index < layout.getNumOfChunks() && key.equals(layout.chunkKey(index));
+    }
+
+    private int sweepSharedChunks(List<String> shared) throws IOException {
+        if (shared.isEmpty())
+            return 0;
+        Map<String, Long> refs = facade.getCounters(FSConstants.ChunkRefsCF, shared, FSConstants.RefsAttr);
+        List<String> unreferenced = new ArrayList<>();
+        for (String key : shared) {
+            Long count = refs.get(key);
+            if (count == null || count <= 0)
+                unreferenced.add(key);
+        }
+        try {
+            facade.getChunkReclaimer().reclaimUnreferenced(unreferenced);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sweeping chunks");
+        }
+        return unreferenced.size();
+    }
+
     private String generateUUID()
     {
         return UUID.randomUUID().toString();
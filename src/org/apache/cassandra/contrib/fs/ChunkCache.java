@@ -0,0 +1,177 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In-process LRU cache of FileData chunks, keyed by chunk row key and bounded
+ * by the total size of the cached chunks.
+ *
+ * Every chunk is cached with the version of the file it belongs to and is only
+ * returned for that version and length. Writes and deletes made through this
+ * client also invalidate the chunks they touch. Chunks that miss here are
+ * looked up in the optional {@link DiskChunkCache}, which is filled along with
+ * this cache.
+ */
+public class ChunkCache
+{
+    private static Logger LOGGER = Logger.getLogger(ChunkCache.class);
+    private final ConcurrentLinkedHashMap<String, Cached> chunks;
+    private final DiskChunkCache secondLevel;
+    private final long capacity;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    static class Cached
+    {
+        final long version;
+        final byte[] data;
+
+        Cached(long version, byte[] data)
+        {
+            this.version = version;
+            this.data = data;
+        }
+    }
+
+    /**
+     * @param capacity the most bytes the cache holds, 0 disables it
+     */
+    public ChunkCache(long capacity)
+    {
+        this(capacity, null);
+    }
+
+    /**
+     * @param capacity the most bytes the cache holds, 0 disables it
+     * @param secondLevel the disk cache behind this one, may be null
+     */
+    public ChunkCache(long capacity, DiskChunkCache secondLevel)
+    {
+        this.secondLevel = secondLevel;
+        this.capacity = Math.min(capacity, Integer.MAX_VALUE);
+        if (this.capacity <= 0) {
+            chunks = null;
+            return;
+        }
+        chunks = new ConcurrentLinkedHashMap.Builder<String, Cached>()
+                .maximumWeightedCapacity((int) this.capacity)
+                .weigher(new Weigher<Cached>()
+                {
+                    @Override
+                    public int weightOf(Cached value)
+                    {
+                        return Math.max(1, value.data.length);
+                    }
+                })
+                .listener(new EvictionListener<String, Cached>()
+                {
+                    @Override
+                    public void onEviction(String key, Cached value)
+                    {
+                        evictions.incrementAndGet();
+                    }
+                })
+                .build();
+        LOGGER.debug("Chunk cache enabled with a capacity of " + this.capacity + " bytes");
+    }
+
+    public boolean isEnabled()
+    {
+        return chunks != null || secondLevel != null;
+    }
+
+    /**
+     * Returns the cached chunk if it was cached for <code>version</code> and
+     * has the expected length, null otherwise.
+     */
+    public byte[] get(String key, long version, int expectedLength)
+    {
+        if (chunks != null) {
+            Cached cached = chunks.get(key);
+            if (cached != null && (cached.version != version || cached.data.length != expectedLength)) {
+                chunks.remove(key, cached);
+                cached = null;
+            }
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached.data;
+            }
+            misses.incrementAndGet();
+        }
+
+        if (secondLevel == null)
+            return null;
+        byte[] chunk = secondLevel.get(key, version, expectedLength);
+        if (chunk != null && chunks != null && chunk.length <= capacity)
+            chunks.put(key, new Cached(version, chunk));
+        return chunk;
+    }
+
+    public void put(String key, long version, byte[] chunk)
+    {
+        if (chunks != null && chunk.length <= capacity)
+            chunks.put(key, new Cached(version, chunk));
+        if (secondLevel != null)
+            secondLevel.put(key, version, chunk);
+    }
+
+    public void invalidate(String key)
+    {
+        if (chunks != null)
+            chunks.remove(key);
+        if (secondLevel != null)
+            secondLevel.invalidate(key);
+    }
+
+    public void clear()
+    {
+        if (chunks != null)
+            chunks.clear();
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    public double getHitRate()
+    {
+        long requests = hits.get() + misses.get();
+        return requests == 0 ? 0 : (double) hits.get() / requests;
+    }
+
+    /**
+     * Total size of the cached chunks.
+     */
+    public long getWeightedSize()
+    {
+        return chunks == null ? 0 : chunks.weightedSize();
+    }
+
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    public DiskChunkCache getSecondLevel()
+    {
+        return secondLevel;
+    }
+}
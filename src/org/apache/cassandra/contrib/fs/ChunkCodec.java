@@ -0,0 +1,261 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.ning.compress.lzf.LZFDecoder;
+import com.ning.compress.lzf.LZFEncoder;
+
+/**
+ * Compresses the blocks of a file on the client, so they cross the network
+ * and reach the coordinator compressed.
+ *
+ * A file gets a codec when its first block is written, and only if a sample
+ * of that block compresses well; the codec is recorded in the Codec column of
+ * FileMeta. Every stored column of such a file is compressed on its own and
+ * starts with a flag byte: 1 if the rest is compressed, 0 if it is stored as
+ * it is because it did not compress well. A column larger than a sample is
+ * only compressed whole when its sample compresses well, a smaller one is
+ * compressed once and the result kept or dropped. Files without a codec are
+ * stored without flags.
+ *
+ * Snappy needs its native library; when it can not be loaded, new files are
+ * written with LZF instead.
+ */
+public abstract class ChunkCodec
+{
+    private static Logger LOGGER = Logger.getLogger(ChunkCodec.class);
+    public final static String None = "none";
+    public final static String Snappy = "snappy";
+    public final static String Lzf = "lzf";
+    // bytes compressed to tell whether data is worth compressing
+    private final static int SampleSize = 64 * 1024;
+    // data whose sample does not shrink below this ratio is left alone
+    private final static double MaxSampleRatio = 0.9;
+    private final static byte Raw = 0;
+    private final static byte Compressed = 1;
+
+    public final static ChunkCodec NONE = new ChunkCodec()
+    {
+        @Override
+        public String getName()
+        {
+            return None;
+        }
+
+        @Override
+        protected byte[] compress(byte[] b, int off, int len)
+        {
+            return Arrays.copyOfRange(b, off, off + len);
+        }
+
+        @Override
+        protected byte[] uncompress(byte[] b, int off, int len)
+        {
+            return Arrays.copyOfRange(b, off, off + len);
+        }
+    };
+
+    public final static ChunkCodec SNAPPY = new ChunkCodec()
+    {
+        @Override
+        public String getName()
+        {
+            return Snappy;
+        }
+
+        @Override
+        protected byte[] compress(byte[] b, int off, int len) throws IOException
+        {
+            byte[] out = new byte[org.xerial.snappy.Snappy.maxCompressedLength(len)];
+            int size = org.xerial.snappy.Snappy.rawCompress(b, off, len, out, 0);
+            return Arrays.copyOf(out, size);
+        }
+
+        @Override
+        protected byte[] uncompress(byte[] b, int off, int len) throws IOException
+        {
+            return org.xerial.snappy.Snappy.uncompress(Arrays.copyOfRange(b, off, off + len));
+        }
+    };
+
+    public final static ChunkCodec LZF = new ChunkCodec()
+    {
+        @Override
+        public String getName()
+        {
+            return Lzf;
+        }
+
+        @Override
+        protected byte[] compress(byte[] b, int off, int len) throws IOException
+        {
+            return LZFEncoder.encode(b, off, len);
+        }
+
+        @Override
+        protected byte[] uncompress(byte[] b, int off, int len) throws IOException
+        {
+            return LZFDecoder.decode(b, off, len);
+        }
+    };
+
+    private static Boolean snappyLoaded;
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    public abstract String getName();
+
+    protected abstract byte[] compress(byte[] b, int off, int len) throws IOException;
+
+    protected abstract byte[] uncompress(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * The codec a file was written with.
+     *
+     * @throws IOException if the codec is unknown or can not be used here
+     */
+    public static ChunkCodec forName(String name) throws IOException
+    {
+        if (name == null || name.equals(None))
+            return NONE;
+        if (name.equals(Lzf))
+            return LZF;
+        if (name.equals(Snappy)) {
+            if (!isSnappyLoaded())
+                throw new IOException("The native Snappy library is not available");
+            return SNAPPY;
+        }
+        throw new IOException("Unknown codec: " + name);
+    }
+
+    /**
+     * The codec new files are written with: the configured one, LZF when
+     * Snappy is configured but can not be loaded, none when it is unknown.
+     */
+    public static ChunkCodec forConfig(String name)
+    {
+        if (Snappy.equals(name) && !isSnappyLoaded()) {
+            LOGGER.warn("The native Snappy library is not available, new files are compressed with LZF");
+            return LZF;
+        }
+        try {
+            return forName(name);
+        } catch (IOException e) {
+            LOGGER.warn("Files are written uncompressed: " + e.getMessage());
+            return NONE;
+        }
+    }
+
+    private static synchronized boolean isSnappyLoaded()
+    {
+        if (snappyLoaded == null) {
+            try {
+                org.xerial.snappy.Snappy.getNativeLibraryVersion();
+                org.xerial.snappy.Snappy.maxCompressedLength(1);
+                snappyLoaded = true;
+            } catch (Throwable t) {
+                LOGGER.debug("Snappy can not be loaded", t);
+                snappyLoaded = false;
+            }
+        }
+        return snappyLoaded;
+    }
+
+    /**
+     * Whether a sample from the start of <code>data</code>, between its
+     * position and limit, shrinks enough to be worth compressing.
+     */
+    public boolean isCompressible(ByteBuffer data) throws IOException
+    {
+        if (this == NONE || !data.hasArray() || !data.hasRemaining())
+            return false;
+        int len = Math.min(SampleSize, data.remaining());
+        byte[] sample = compress(data.array(), data.arrayOffset() + data.position(), len);
+        return sample.length <= len * MaxSampleRatio;
+    }
+
+    /**
+     * The stored form of the bytes between the position and the limit of
+     * <code>data</code>. Without a codec that is <code>data</code> itself.
+     */
+    public ByteBuffer encode(ByteBuffer data) throws IOException
+    {
+        if (this == NONE)
+            return data;
+        int len = data.remaining();
+        rawBytes.addAndGet(len);
+        byte[] array;
+        int off;
+        if (data.hasArray()) {
+            array = data.array();
+            off = data.arrayOffset() + data.position();
+        }
+        else {
+            array = new byte[len];
+            data.duplicate().get(array);
+            off = 0;
+        }
+
+        // a column no larger than a sample would be compressed twice, it is its own sample
+        if (len <= SampleSize || isCompressible(data)) {
+            byte[] compressed = compress(array, off, len);
+            if (compressed.length <= len * MaxSampleRatio) {
+                storedBytes.addAndGet(compressed.length + 1);
+                return flagged(Compressed, compressed, 0, compressed.length);
+            }
+        }
+        storedBytes.addAndGet(len + 1);
+        return flagged(Raw, array, off, len);
+    }
+
+    /**
+     * The data held by a stored column.
+     */
+    public byte[] decode(byte[] stored) throws IOException
+    {
+        if (this == NONE)
+            return stored;
+        if (stored.length == 0)
+            throw new IOException("Empty " + getName() + " column");
+        if (stored[0] == Compressed)
+            return uncompress(stored, 1, stored.length - 1);
+        if (stored[0] == Raw)
+            return Arrays.copyOfRange(stored, 1, stored.length);
+        throw new IOException("Unknown flag " + stored[0] + " in a " + getName() + " column");
+    }
+
+    /**
+     * Bytes handed to {@link #encode}.
+     */
+    public long getRawBytes()
+    {
+        return rawBytes.get();
+    }
+
+    /**
+     * Bytes {@link #encode} turned them into.
+     */
+    public long getStoredBytes()
+    {
+        return storedBytes.get();
+    }
+
+    private static ByteBuffer flagged(byte flag, byte[] b, int off, int len)
+    {
+        byte[] stored = new byte[len + 1];
+        stored[0] = flag;
+        System.arraycopy(b, off, stored, 1, len);
+        return ByteBuffer.wrap(stored);
+    }
+
+    @Override
+    public String toString()
+    {
+        return getName();
+    }
+}
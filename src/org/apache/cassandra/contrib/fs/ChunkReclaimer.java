@@ -0,0 +1,274 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Deletes FileData rows that are no longer referenced, in the background.
+ *
+ * Overwrites and deletes only enqueue the chunk rows they leave behind. A
+ * single daemon thread drains the queue in batches of <code>batchSize</code>
+ * rows per mutation and never deletes more than <code>rowsPerSecond</code> rows
+ * per second, so cleanup neither slows down the callers nor floods the cluster.
+ * The thread only paces the work, the deletions themselves run on a lane of the
+ * shared {@link IOScheduler}.
+ *
+ * Every row is deleted with the timestamp taken when it was enqueued, so a
+ * chunk rewritten in the meantime under the same key is left alone. Rows are
+ * only deleted <code>delayMillis</code> after they were enqueued, so streams
+ * still reading the generation of a file that was just replaced can finish.
+ *
+ * Rows of deduplicated blocks are shared between files. Releasing one only
+ * drops a reference, and the row is queued to be deleted once its ChunkRefs
+ * counter is down to zero. The counter is read again right before deleting,
+ * so a row that a new file started to refer to in the meantime is kept.
+ * Counters are not transactional, so a file can take the first new reference
+ * between that read and the deletion. The upload that took it writes the row
+ * again with a newer timestamp (see {@link FileLayout#claimChunk}), which the
+ * deletion does not cover.
+ *
+ * The queue only lives in memory. Rows still queued when the client stops
+ * stay behind, as do blocks written by a client that died before committing
+ * them; {@link CassandraFileSystem#sweepChunks} finds and queues them again.
+ */
+public class ChunkReclaimer implements Runnable
+{
+    private static Logger LOGGER = Logger.getLogger(ChunkReclaimer.class);
+    private final static int QueueCapacity = 100000;
+    private final static long RetryDelayMillis = 1000;
+    private final CassandraFacade facade;
+    private final IOScheduler.Lane lane;
+    private final BlockingQueue<Work> queue = new LinkedBlockingQueue<>(QueueCapacity);
+    private final int batchSize;
+    private final int rowsPerSecond;
+    private final long delayMillis;
+    private final AtomicLong reclaimed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private Thread worker;
+
+    static class Work
+    {
+        final String key;
+        final long clock;
+        // a deduplicated row, only deleted while no file refers to it
+        final boolean shared;
+        // when the row may be deleted
+        final long due;
+
+        Work(String key, long clock, boolean shared, long due)
+        {
+            this.key = key;
+            this.clock = clock;
+            this.shared = shared;
+            this.due = due;
+        }
+    }
+
+    public ChunkReclaimer(CassandraFacade facade, IOScheduler scheduler, int batchSize, int rowsPerSecond)
+    {
+        this(facade, scheduler, batchSize, rowsPerSecond, 0);
+    }
+
+    /**
+     * @param delayMillis how long rows stay after they were enqueued
+     */
+    public ChunkReclaimer(CassandraFacade facade, IOScheduler scheduler, int batchSize, int rowsPerSecond,
+            long delayMillis)
+    {
+        this.facade = facade;
+        this.lane = scheduler.newLane("reclaim");
+        this.batchSize = Math.max(1, batchSize);
+        this.rowsPerSecond = rowsPerSecond;
+        this.delayMillis = Math.max(0, delayMillis);
+    }
+
+    public synchronized void start()
+    {
+        if (worker == null) {
+            worker = new Thread(this, "ChunkReclaimer");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues the FileData rows <code>keys</code> for deletion. Blocks while the
+     * queue is full.
+     */
+    public void reclaim(List<String> keys) throws InterruptedException
+    {
+        long clock = facade.createClock();
+        long due = System.currentTimeMillis() + delayMillis;
+        for (String key : keys) {
+            queue.put(new Work(key, clock, false, due));
+        }
+        if (!keys.isEmpty()) {
+            LOGGER.debug("Queued " + keys.size() + " chunks for reclamation, pending: " + queue.size());
+        }
+    }
+
+    /**
+     * Drops one reference to every deduplicated FileData row in
+     * <code>keys</code>, a key listed twice loses two, and queues the rows for
+     * deletion. Blocks while the queue is full.
+     */
+    public void release(List<String> keys) throws IOException, InterruptedException
+    {
+        Map<String, Long> deltas = new HashMap<>();
+        for (String key : keys) {
+            Long delta = deltas.get(key);
+            deltas.put(key, delta == null ? -1L : delta - 1);
+        }
+        facade.addCounters(FSConstants.ChunkRefsCF, deltas, FSConstants.RefsAttr);
+
+        long clock = facade.createClock();
+        long due = System.currentTimeMillis() + delayMillis;
+        for (String key : deltas.keySet()) {
+            queue.put(new Work(key, clock, true, due));
+        }
+        if (!deltas.isEmpty()) {
+            LOGGER.debug("Released " + keys.size() + " references to shared chunks, pending: " + queue.size());
+        }
+    }
+
+    /**
+     * Queues deduplicated FileData rows that no file refers to any more for
+     * deletion, without dropping a reference. The counters are read again
+     * before deleting, like for released rows. Blocks while the queue is full.
+     */
+    public void reclaimUnreferenced(List<String> keys) throws InterruptedException
+    {
+        long clock = facade.createClock();
+        long due = System.currentTimeMillis() + delayMillis;
+        for (String key : keys) {
+            queue.put(new Work(key, clock, true, due));
+        }
+        if (!keys.isEmpty()) {
+            LOGGER.debug("Queued " + keys.size() + " unreferenced shared chunks, pending: " + queue.size());
+        }
+    }
+
+    public int getPending()
+    {
+        return queue.size();
+    }
+
+    public long getReclaimed()
+    {
+        return reclaimed.get();
+    }
+
+    public long getFailures()
+    {
+        return failures.get();
+    }
+
+    @Override
+    public void run()
+    {
+        List<Work> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                Work first = queue.take();
+                long wait = first.due - System.currentTimeMillis();
+                if (wait > 0)
+                    TimeUnit.MILLISECONDS.sleep(wait);
+                batch.add(first);
+                // the queue is in the order rows are due, this is its only consumer
+                Work next;
+                while (batch.size() < batchSize && (next = queue.peek()) != null
+                        && next.due <= System.currentTimeMillis()) {
+                    batch.add(queue.poll());
+                }
+
+                long start = System.currentTimeMillis();
+                delete(batch);
+                reclaimed.addAndGet(batch.size());
+
+                if (rowsPerSecond > 0) {
+                    long budget = batch.size() * 1000L / rowsPerSecond;
+                    long elapsed = System.currentTimeMillis() - start;
+                    if (budget > elapsed) {
+                        TimeUnit.MILLISECONDS.sleep(budget - elapsed);
+                    }
+                }
+                batch.clear();
+            } catch (InterruptedException ex) {
+                LOGGER.debug("Chunk reclaimer interrupted, pending: " + queue.size());
+                return;
+            } catch (Exception ex) {
+                // keep the batch and try again, deleting a row twice is harmless
+                failures.incrementAndGet();
+                LOGGER.warn("Failed to reclaim " + batch.size() + " chunks, retrying", ex);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(RetryDelayMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void delete(final List<Work> batch) throws Exception
+    {
+        final Map<String, Long> rows = rows(batch);
+        try {
+            lane.submit(new Callable<Object>()
+            {
+                @Override
+                public Object call() throws Exception
+                {
+                    keepReferenced(batch, rows);
+                    facade.deleteRows(FSConstants.FileDataCF, rows);
+                    return null;
+                }
+            }).get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception)
+                throw (Exception) ex.getCause();
+            throw ex;
+        }
+        LOGGER.debug("Reclaimed " + rows.size() + " chunks");
+    }
+
+    /**
+     * Leaves out of <code>rows</code> the shared rows some file refers to again.
+     */
+    private void keepReferenced(List<Work> batch, Map<String, Long> rows) throws IOException
+    {
+        List<String> shared = new ArrayList<>();
+        for (Work work : batch) {
+            if (work.shared)
+                shared.add(work.key);
+        }
+        if (shared.isEmpty())
+            return;
+        for (Map.Entry<String, Long> refs : facade.getCounters(FSConstants.ChunkRefsCF, shared, FSConstants.RefsAttr).entrySet()) {
+            if (refs.getValue() > 0)
+                rows.remove(refs.getKey());
+        }
+    }
+
+    private static Map<String, Long> rows(List<Work> batch)
+    {
+        Map<String, Long> rows = new HashMap<>();
+        for (Work work : batch) {
+            Long clock = rows.get(work.key);
+            if (clock == null || clock < work.clock) {
+                rows.put(work.key, work.clock);
+            }
+        }
+        return rows;
+    }
+}
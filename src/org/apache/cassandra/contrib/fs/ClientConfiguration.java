@@ -196,6 +196,25 @@ public class ClientConfiguration
         }
     }
 
+    public int getMinBlockSize()
+    {
+        String cons = properties.getProperty(FSConstants.MinBlockSizeConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.MinBlockSizeConfig
+                    + "' is not provided, the default value will been used");
+            return FSConstants.MinBlockSize;
+        }
+        else
+        {
+            int value = FSConstants.MinBlockSize;
+
+            try{ value = Integer.parseInt(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return Math.max(4096, value);
+        }
+    }
+
     public int getMaxFileSize()
     {
         String cons = properties.getProperty(FSConstants.MaxFileSizeConfig);
@@ -215,6 +234,413 @@ public class ClientConfiguration
         }
     }
 
+    public int getSubBlockSize()
+    {
+        String cons = properties.getProperty(FSConstants.SubBlockSizeConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.SubBlockSizeConfig
+                    + "' is not provided, the default value will been used");
+            return 0;
+        }
+        else
+        {
+            int value = 0;
+
+            try{ value = Integer.parseInt(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return Math.max(0, value);
+        }
+    }
+
+    public int getIOThreads()
+    {
+        String cons = properties.getProperty(FSConstants.IOThreadsConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.IOThreadsConfig
+                    + "' is not provided, the default value will been used");
+            return 16;
+        }
+        else
+        {
+            int value = 16;
+
+            try{ value = Integer.parseInt(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return Math.max(1, value);
+        }
+    }
+
+    public boolean useVirtualThreads()
+    {
+        String cons = properties.getProperty(FSConstants.VirtualThreadsConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.VirtualThreadsConfig
+                    + "' is not provided, the default value will been used");
+            return false;
+        }
+        else {
+            if(cons.trim().compareTo("true") == 0)
+                return true;
+            else
+                return false;
+        }
+    }
+
+    public boolean useDedup()
+    {
+        String cons = properties.getProperty(FSConstants.DedupConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.DedupConfig
+                    + "' is not provided, the default value will been used");
+            return false;
+        }
+        else {
+            if(cons.trim().compareTo("true") == 0)
+                return true;
+            else
+                return false;
+        }
+    }
+
+    public int getReclaimBatchSize()
+    {
+        String cons = properties.getProperty(FSConstants.ReclaimBatchSizeConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.ReclaimBatchSizeConfig
+                    + "' is not provided, the default value will been used");
+            return 100;
+        }
+        else
+        {
+            int value = 100;
+
+            try{ value = Integer.parseInt(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return Math.max(1, value);
+        }
+    }
+
+    /**
+     * 0 disables the rate limit of the chunk reclaimer
+     */
+    public int getReclaimRowsPerSecond()
+    {
+        String cons = properties.getProperty(FSConstants.ReclaimRowsPerSecondConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.ReclaimRowsPerSecondConfig
+                    + "' is not provided, the default value will been used");
+            return 200;
+        }
+        else
+        {
+            int value = 200;
+
+            try{ value = Integer.parseInt(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return Math.max(0, value);
+        }
+    }
+
+    /**
+     * How long replaced chunks are kept for the streams still reading them
+     */
+    public long getReclaimDelayMillis()
+    {
+        String cons = properties.getProperty(FSConstants.ReclaimDelayMillisConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.ReclaimDelayMillisConfig
+                    + "' is not provided, the default value will been used");
+            return 60000;
+        }
+        else
+        {
+            long value = 60000;
+
+            try{ value = Long.parseLong(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return Math.max(0, value);
+        }
+    }
+
+    /**
+     * 0 disables the chunk cache
+     */
+    public long getChunkCacheBytes()
+    {
+        String cons = properties.getProperty(FSConstants.ChunkCacheBytesConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.ChunkCacheBytesConfig
+                    + "' is not provided, the default value will been used");
+            return 0;
+        }
+        else
+        {
+            long value = 0;
+
+            try{ value = Long.parseLong(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return Math.max(0, value);
+        }
+    }
+
+    /**
+     * 0 disables the path cache
+     */
+    public int getPathCacheSize()
+    {
+        String cons = properties.getProperty(FSConstants.PathCacheSizeConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.PathCacheSizeConfig
+                    + "' is not provided, the default value will been used");
+            return 100000;
+        }
+        else
+        {
+            int value = 100000;
+
+            try{ value = Integer.parseInt(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return Math.max(0, value);
+        }
+    }
+
+    /**
+     * How long other clients may go unnoticed, 0 disables the path cache
+     */
+    public long getPathCacheTtlMillis()
+    {
+        String cons = properties.getProperty(FSConstants.PathCacheTtlMillisConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.PathCacheTtlMillisConfig
+                    + "' is not provided, the default value will been used");
+            return 10000;
+        }
+        else
+        {
+            long value = 10000;
+
+            try{ value = Long.parseLong(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return Math.max(0, value);
+        }
+    }
+
+    public int getReadAheadChunks()
+    {
+        String cons = properties.getProperty(FSConstants.ReadAheadChunksConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.ReadAheadChunksConfig
+                    + "' is not provided, the default value will been used");
+            return 4;
+        }
+        else
+        {
+            int value = 4;
+
+            try{ value = Integer.parseInt(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return Math.max(1, value);
+        }
+    }
+
+    public long getReadAheadBytes()
+    {
+        String cons = properties.getProperty(FSConstants.ReadAheadBytesConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.ReadAheadBytesConfig
+                    + "' is not provided, the default value will been used");
+            return 4L * getBlockSize();
+        }
+        else
+        {
+            long value = 4L * getBlockSize();
+
+            try{ value = Long.parseLong(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return value;
+        }
+    }
+
+    /**
+     * Files up to this size are stored inline in FileMeta, 0 disables it
+     */
+    public int getInlineThreshold()
+    {
+        String cons = properties.getProperty(FSConstants.InlineThresholdConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.InlineThresholdConfig
+                    + "' is not provided, the default value will been used");
+            return 0;
+        }
+        else
+        {
+            int value = 0;
+
+            try{ value = Integer.parseInt(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return Math.max(0, value);
+        }
+    }
+
+    /**
+     * Chunk mutations one upload keeps in flight
+     */
+    public int getUploadConcurrency()
+    {
+        String cons = properties.getProperty(FSConstants.UploadConcurrencyConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.UploadConcurrencyConfig
+                    + "' is not provided, the default value will been used");
+            return 1;
+        }
+        else
+        {
+            int value = 1;
+
+            try{ value = Integer.parseInt(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return Math.max(1, value);
+        }
+    }
+
+    public int getAsyncMaxInFlight()
+    {
+        String cons = properties.getProperty(FSConstants.AsyncMaxInFlightConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.AsyncMaxInFlightConfig
+                    + "' is not provided, the default value will been used");
+            return 64;
+        }
+        else
+        {
+            int value = 64;
+
+            try{ value = Integer.parseInt(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return Math.max(1, value);
+        }
+    }
+
+    public int getAsyncThreads()
+    {
+        String cons = properties.getProperty(FSConstants.AsyncThreadsConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.AsyncThreadsConfig
+                    + "' is not provided, the default value will been used");
+            return 8;
+        }
+        else
+        {
+            int value = 8;
+
+            try{ value = Integer.parseInt(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return Math.max(1, value);
+        }
+    }
+
+    /**
+     * 0 disables the buffer pool
+     */
+    public long getBufferPoolBytes()
+    {
+        String cons = properties.getProperty(FSConstants.BufferPoolBytesConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.BufferPoolBytesConfig
+                    + "' is not provided, the default value will been used");
+            return 0;
+        }
+        else
+        {
+            long value = 0;
+
+            try{ value = Long.parseLong(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return Math.max(0, value);
+        }
+    }
+
+    /**
+     * Codec new files are compressed with, none writes them uncompressed
+     */
+    public String getCodec()
+    {
+        String cons = properties.getProperty(FSConstants.CodecConfig);
+        if (cons == null || cons.trim().isEmpty()) {
+            LOGGER.warn("'" + FSConstants.CodecConfig
+                    + "' is not provided, files are written uncompressed");
+            return ChunkCodec.None;
+        }
+        return cons.trim().toLowerCase();
+    }
+
+    /**
+     * Directory of the disk chunk cache, null disables it
+     */
+    public String getDiskCacheDir()
+    {
+        String cons = properties.getProperty(FSConstants.DiskCacheDirConfig);
+        if (cons == null || cons.trim().isEmpty()) {
+            LOGGER.warn("'" + FSConstants.DiskCacheDirConfig
+                    + "' is not provided, the disk chunk cache is disabled");
+            return null;
+        }
+        return cons.trim();
+    }
+
+    public int getDiskCacheSegmentBytes()
+    {
+        String cons = properties.getProperty(FSConstants.DiskCacheSegmentBytesConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.DiskCacheSegmentBytesConfig
+                    + "' is not provided, the default value will been used");
+            return 256 * 1024 * 1024;
+        }
+        else
+        {
+            int value = 256 * 1024 * 1024;
+
+            try{ value = Integer.parseInt(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return Math.max(1024 * 1024, value);
+        }
+    }
+
+    public int getDiskCacheSegments()
+    {
+        String cons = properties.getProperty(FSConstants.DiskCacheSegmentsConfig);
+        if (cons == null) {
+            LOGGER.warn("'" + FSConstants.DiskCacheSegmentsConfig
+                    + "' is not provided, the default value will been used");
+            return 8;
+        }
+        else
+        {
+            int value = 8;
+
+            try{ value = Integer.parseInt(cons.trim());}
+            catch(NumberFormatException e){}
+
+            return Math.max(2, value);
+        }
+    }
+
 //	public ExhaustedPolicy getExhaustedPolicy() {
 //		String exhaustedPolicy = properties
 //				.getProperty(FSConstants.ExhaustedPolicy);
@@ -0,0 +1,181 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+
+import org.apache.cassandra.contrib.fs.util.Bytes;
+
+/**
+ * The entry of a file or folder in its parent folder.
+ *
+ * The DirEntries row of a folder is keyed by its path and has one column per
+ * child, named after it, whose value packs everything a listing shows. Listing
+ * or counting the children of a folder is then a slice of one row instead of
+ * a query of the Path index of FileMeta, which every node has to answer. The
+ * entries are written and deleted in the same mutations as the FileMeta rows
+ * they describe, along with the PathIndex row that resolves the path of the
+ * child. The root folder has a PathIndex row but no entry.
+ */
+public class DirEntry
+{
+    private final static int Format = 1;
+    private final String parent;
+    private final String name;
+    private final String uuid;
+    private final boolean dir;
+    private final long length;
+    private final long created;
+    private final long modified;
+    private final String owner;
+    private final String group;
+    private final int permissions;
+
+    /**
+     * An entry with the default owner, group and permissions.
+     */
+    public DirEntry(String parent, String name, String uuid, boolean dir, long length, long created, long modified)
+    {
+        this(parent, name, uuid, dir, length, created, modified, Bytes.toString(FSConstants.DefaultOwner),
+                Bytes.toString(FSConstants.DefaultGroup), 0x0777);
+    }
+
+    DirEntry(String parent, String name, String uuid, boolean dir, long length, long created, long modified,
+            String owner, String group, int permissions)
+    {
+        this.parent = parent;
+        this.name = name;
+        this.uuid = uuid;
+        this.dir = dir;
+        this.length = length;
+        this.created = created;
+        this.modified = modified;
+        this.owner = owner;
+        this.group = group;
+        this.permissions = permissions;
+    }
+
+    /**
+     * The entry of the FileMeta row <code>uuid</code>, or null if it has no
+     * name or parent.
+     */
+    public static DirEntry fromMeta(String uuid, Map<String, byte[]> meta)
+    {
+        if (!meta.containsKey(FSConstants.NameAttr) || !meta.containsKey(FSConstants.PathAttr))
+            return null;
+        return new DirEntry(Bytes.toString(meta.get(FSConstants.PathAttr)),
+                Bytes.toString(meta.get(FSConstants.NameAttr)), uuid,
+                meta.containsKey(FSConstants.TypeAttr) && !Bytes.toString(meta.get(FSConstants.TypeAttr)).equals("File"),
+                longValue(meta, FSConstants.LengthAttr), longValue(meta, FSConstants.CreationTimeAttr),
+                longValue(meta, FSConstants.LastModifiedTime),
+                meta.containsKey(FSConstants.OwnerAttr) ? Bytes.toString(meta.get(FSConstants.OwnerAttr)) : "",
+                meta.containsKey(FSConstants.GroupAttr) ? Bytes.toString(meta.get(FSConstants.GroupAttr)) : "",
+                meta.containsKey(FSConstants.PermissionsAttr) ? Bytes.toInt(meta.get(FSConstants.PermissionsAttr)) : 0x0777);
+    }
+
+    /**
+     * Reads the entry <code>name</code> of the DirEntries row of the folder
+     * <code>parent</code>.
+     */
+    public static DirEntry unpack(String parent, String name, byte[] value) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+        int format = in.readByte();
+        if (format != Format)
+            throw new IOException("Unknown format " + format + " of the entry of " + name + " in " + parent);
+        boolean dir = in.readBoolean();
+        String uuid = in.readUTF();
+        long length = in.readLong();
+        long created = in.readLong();
+        long modified = in.readLong();
+        String owner = in.readUTF();
+        String group = in.readUTF();
+        int permissions = in.readInt();
+        return new DirEntry(parent, name, uuid, dir, length, created, modified, owner, group, permissions);
+    }
+
+    /**
+     * The value of the column of this entry.
+     */
+    public byte[] pack()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + uuid.length() + owner.length() + group.length());
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(Format);
+            out.writeBoolean(dir);
+            out.writeUTF(uuid);
+            out.writeLong(length);
+            out.writeLong(created);
+            out.writeLong(modified);
+            out.writeUTF(owner);
+            out.writeUTF(group);
+            out.writeInt(permissions);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not pack the entry of " + name, e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * This entry as modified at <code>modified</code>.
+     */
+    public DirEntry withModified(long modified)
+    {
+        return new DirEntry(parent, name, uuid, dir, length, created, modified, owner, group, permissions);
+    }
+
+    /**
+     * The full path of the file or folder.
+     */
+    public String getPath()
+    {
+        if (parent.equals(""))
+            return name;
+        return parent + (parent.endsWith("/") ? "" : "/") + name;
+    }
+
+    public Path toPath()
+    {
+        return new Path(parent, name, dir, length, new Date(created), new Date(modified), owner, group, uuid);
+    }
+
+    public String getParent()
+    {
+        return parent;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getUUID()
+    {
+        return uuid;
+    }
+
+    public boolean isDir()
+    {
+        return dir;
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    public long getModified()
+    {
+        return modified;
+    }
+
+    private static long longValue(Map<String, byte[]> meta, String column)
+    {
+        return meta.containsKey(column) ? Bytes.toLong(meta.get(column)) : 0;
+    }
+}
@@ -0,0 +1,313 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Second level chunk cache kept on local disk.
+ *
+ * Chunks are appended to a fixed number of segment files of
+ * <code>segmentSize</code> bytes, accessed through memory mappings, so the
+ * cached data lives outside the heap and survives restarts: the index is
+ * rebuilt by scanning the segments when the cache is opened. When every segment
+ * is full, the least recently read one is emptied and reused.
+ *
+ * Every chunk is stored with the version of the file it was read from and is
+ * only returned for that version, a checksum guards against torn writes.
+ *
+ * A record is: magic, key length, key, version, data length, CRC32 of the data,
+ * data. The magic is written last, so a record cut short by a crash is never
+ * indexed. A record that is invalidated or replaced by a newer one of the same
+ * key gets a dead magic, the scan steps over it, so neither comes back after a
+ * restart. The directory is locked, only one client process uses it at a time.
+ */
+public class DiskChunkCache
+{
+    private static Logger LOGGER = Logger.getLogger(DiskChunkCache.class);
+    private final static int Magic = 0xCF5C0DE1;
+    private final static int Dead = 0xCF5C0DE0;
+    private final static int HeaderSize = 4 + 4 + 8 + 4 + 4;
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final File dir;
+    private final int segmentSize;
+    private final Segment[] segments;
+    private final FileLock lock;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private Segment current;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    static class Segment
+    {
+        final int id;
+        final MappedByteBuffer buffer;
+        // position where the next record goes
+        int writePosition = 0;
+        // bumped every time the segment is emptied, entries of an older epoch are gone
+        volatile int epoch = 0;
+        volatile long lastAccess;
+
+        Segment(int id, MappedByteBuffer buffer, long lastAccess)
+        {
+            this.id = id;
+            this.buffer = buffer;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    static class Entry
+    {
+        final Segment segment;
+        final int epoch;
+        // where the record starts, its magic
+        final int start;
+        final int offset;
+        final int length;
+        final int crc;
+        final long version;
+
+        Entry(Segment segment, int epoch, int start, int offset, int length, int crc, long version)
+        {
+            this.segment = segment;
+            this.epoch = epoch;
+            this.start = start;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+            this.version = version;
+        }
+    }
+
+    public DiskChunkCache(File dir, int segmentSize, int numOfSegments) throws IOException
+    {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can not create chunk cache directory: " + dir.getAbsolutePath());
+        lock = new RandomAccessFile(new File(dir, "lock"), "rw").getChannel().tryLock();
+        if (lock == null)
+            throw new IOException("Chunk cache directory is in use: " + dir.getAbsolutePath());
+
+        segments = new Segment[Math.max(2, numOfSegments)];
+        for (int i = 0; i < segments.length; i++) {
+            File file = new File(dir, "segment-" + i + ".db");
+            long lastAccess = file.exists() ? file.lastModified() : 0;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(segmentSize);
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+                segments[i] = new Segment(i, buffer, lastAccess);
+            }
+            scan(segments[i]);
+        }
+
+        // keep appending to the segment with the most room left
+        current = segments[0];
+        for (Segment segment : segments) {
+            if (segment.writePosition < current.writePosition)
+                current = segment;
+        }
+        LOGGER.info("Disk chunk cache opened at " + dir.getAbsolutePath() + " with "
+                + index.size() + " chunks");
+    }
+
+    /**
+     * Returns a copy of the cached chunk if it was stored for
+     * <code>version</code> and has the expected length, null otherwise.
+     */
+    public byte[] get(String key, long version, int expectedLength)
+    {
+        Entry entry = index.get(key);
+        if (entry == null || entry.version != version || entry.length != expectedLength) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        byte[] data = new byte[entry.length];
+        MappedByteBuffer buffer = entry.segment.buffer;
+        synchronized (buffer) {
+            buffer.position(entry.offset);
+            buffer.get(data);
+        }
+        // the segment may have been reused while copying
+        if (entry.segment.epoch != entry.epoch || crc(data, data.length) != entry.crc) {
+            index.remove(key, entry);
+            misses.incrementAndGet();
+            return null;
+        }
+        entry.segment.lastAccess = System.currentTimeMillis();
+        hits.incrementAndGet();
+        return data;
+    }
+
+    public synchronized void put(String key, long version, byte[] data)
+    {
+        byte[] keyBytes = key.getBytes(UTF8);
+        int size = HeaderSize + keyBytes.length + data.length;
+        // leave room for the terminating zero
+        if (size + 4 > segmentSize)
+            return;
+        if (current.writePosition + size + 4 > segmentSize)
+            rotate();
+
+        Segment segment = current;
+        int start = segment.writePosition;
+        int crc = crc(data, data.length);
+        MappedByteBuffer buffer = segment.buffer;
+        synchronized (buffer) {
+            buffer.position(start + 4);
+            buffer.putInt(keyBytes.length);
+            buffer.put(keyBytes);
+            buffer.putLong(version);
+            buffer.putInt(data.length);
+            buffer.putInt(crc);
+            buffer.put(data);
+            buffer.putInt(0);
+            buffer.putInt(start, Magic);
+        }
+        segment.writePosition = start + size;
+        segment.lastAccess = System.currentTimeMillis();
+        kill(index.put(key, new Entry(segment, segment.epoch, start, start + size - data.length,
+                data.length, crc, version)));
+    }
+
+    public synchronized void invalidate(String key)
+    {
+        kill(index.remove(key));
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Number of segments emptied to make room.
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    public int getSize()
+    {
+        return index.size();
+    }
+
+    public File getDirectory()
+    {
+        return dir;
+    }
+
+    /**
+     * Releases the directory. The cache must not be used afterwards.
+     */
+    public synchronized void close() throws IOException
+    {
+        index.clear();
+        for (Segment segment : segments)
+            segment.buffer.force();
+        lock.release();
+        lock.channel().close();
+    }
+
+    /**
+     * Moves to an empty segment, or empties the least recently read one.
+     */
+    private void rotate()
+    {
+        Segment next = null;
+        for (Segment segment : segments) {
+            if (segment == current)
+                continue;
+            if (segment.writePosition == 0) {
+                next = segment;
+                break;
+            }
+            if (next == null || segment.lastAccess < next.lastAccess)
+                next = segment;
+        }
+
+        if (next.writePosition > 0) {
+            next.epoch++;
+            Iterator<Entry> it = index.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().segment == next)
+                    it.remove();
+            }
+            synchronized (next.buffer) {
+                next.buffer.putInt(0, 0);
+            }
+            next.writePosition = 0;
+            evictions.incrementAndGet();
+            LOGGER.debug("Disk chunk cache segment " + next.id + " evicted");
+        }
+        current = next;
+    }
+
+    /**
+     * Marks the record of <code>entry</code> dead, unless its segment was
+     * emptied since.
+     */
+    private void kill(Entry entry)
+    {
+        if (entry == null || entry.segment.epoch != entry.epoch)
+            return;
+        synchronized (entry.segment.buffer) {
+            entry.segment.buffer.putInt(entry.start, Dead);
+        }
+    }
+
+    private void scan(Segment segment)
+    {
+        MappedByteBuffer buffer = segment.buffer;
+        int pos = 0;
+        while (pos + HeaderSize <= segmentSize
+                && (buffer.getInt(pos) == Magic || buffer.getInt(pos) == Dead)) {
+            boolean live = buffer.getInt(pos) == Magic;
+            buffer.position(pos + 4);
+            int keyLength = buffer.getInt();
+            if (keyLength < 0 || pos + HeaderSize + keyLength > segmentSize)
+                break;
+            byte[] keyBytes = new byte[keyLength];
+            buffer.get(keyBytes);
+            long version = buffer.getLong();
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            int offset = buffer.position();
+            if (length < 0 || offset + length > segmentSize)
+                break;
+
+            String key = new String(keyBytes, UTF8);
+            Entry previous = index.get(key);
+            if (live && (previous == null || previous.version <= version))
+                index.put(key, new Entry(segment, segment.epoch, pos, offset, length, crc, version));
+            pos = offset + length;
+        }
+        segment.writePosition = pos;
+    }
+
+    private static int crc(byte[] data, int length)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return (int) crc.getValue();
+    }
+}
@@ -8,6 +8,12 @@ public class FSConstants {
 	public final static String KeySpace = "FS";
 	public final static String FileMetaCF = "FileMeta";
         public final static String FileDataCF = "FileData";
+        // counts the files that refer to every deduplicated FileData row
+        public final static String ChunkRefsCF = "ChunkRefs";
+        // one row per folder listing its children, see DirEntry
+        public final static String DirEntriesCF = "DirEntries";
+        // one row per file or folder keyed by its path, holding its UUID and Type
+        public final static String PathIndexCF = "PathIndex";
 	//public final static String FolderFlag = "$_Folder_$";
 
 	// attribute
@@ -21,7 +27,21 @@ public class FSConstants {
 	public final static String GroupAttr = "Group";
         public final static String PermissionsAttr = "Permissions";
         
+        public final static String LayoutAttr = "Layout";
+        public final static String SubBlockSizeAttr = "SubBlockSize";
+        public final static String BlockSizeAttr = "BlockSize";
+
         public final static String ChunkAttr = "Chunk";
+        // content of files stored inline in FileMeta
+        public final static String DataAttr = "Data";
+        // digests of the blocks of a deduplicated file
+        public final static String ChunksAttr = "Chunks";
+        public final static String RefsAttr = "Refs";
+        // codec the blocks of a file are compressed with, none if missing
+        public final static String CodecAttr = "Codec";
+        public final static String UUIDAttr = "UUID";
+        // generation of the FileData rows of a file, see FileLayout
+        public final static String GenerationAttr = "Generation";
 
 	// default owner and group
 
@@ -31,6 +51,34 @@ public class FSConstants {
 	// size limitation
 	public static int BlockSize = 15204352;//MAX able 14,5 MB/chunk
 
+	// smallest block size new files are written with, see BlockSizeChooser
+	public static int MinBlockSize = 1048576;
+
+	// size of the columns a block is split into, 0 keeps the whole block in
+	// the Chunk column
+	public static int SubBlockSize = 0;
+
+	// read-ahead window of CFileInputStream
+	public static int ReadAheadChunks = 4;
+	public static long ReadAheadBytes = 4L * 15204352;
+
+	// files up to this size are stored in FileMeta, 0 disables it
+	public static int InlineThreshold = 0;
+
+	// chunk mutations in flight per upload
+	public static int UploadConcurrency = 1;
+
+	// most operations of the AsyncFileSystem pending at once
+	public static int AsyncMaxInFlight = 64;
+	public static int AsyncThreads = 8;
+	public static boolean VirtualThreads = false;
+
+	// store blocks under the digest of their content, once per cluster
+	public static boolean Dedup = false;
+
+	// codec new files are compressed with when their data compresses well
+	public static String Codec = ChunkCodec.None;
+
 	// client property
 	public final static String Hosts = "cassandra.client.hosts";
 	public final static String ExhaustedPolicy = "";
@@ -46,4 +94,26 @@ public class FSConstants {
         public final static String BenchmarkWriteOnly = "cassandra.benchmark.writeOnly";
         public final static String BlockSizeConfig = "cassandra.client.blockSize";
         public final static String MaxFileSizeConfig = "cassandra.client.maxFileSize";
+        public final static String MinBlockSizeConfig = "cassandra.client.minBlockSize";
+        public final static String SubBlockSizeConfig = "cassandra.client.subBlockSize";
+        public final static String IOThreadsConfig = "cassandra.client.ioThreads";
+        public final static String VirtualThreadsConfig = "cassandra.client.virtualThreads";
+        public final static String ReclaimBatchSizeConfig = "cassandra.client.reclaimBatchSize";
+        public final static String ReclaimRowsPerSecondConfig = "cassandra.client.reclaimRowsPerSecond";
+        public final static String ReclaimDelayMillisConfig = "cassandra.client.reclaimDelayMillis";
+        public final static String ChunkCacheBytesConfig = "cassandra.client.chunkCacheBytes";
+        public final static String PathCacheSizeConfig = "cassandra.client.pathCacheSize";
+        public final static String PathCacheTtlMillisConfig = "cassandra.client.pathCacheTtlMillis";
+        public final static String ReadAheadChunksConfig = "cassandra.client.readAheadChunks";
+        public final static String ReadAheadBytesConfig = "cassandra.client.readAheadBytes";
+        public final static String InlineThresholdConfig = "cassandra.client.inlineThreshold";
+        public final static String UploadConcurrencyConfig = "cassandra.client.uploadConcurrency";
+        public final static String AsyncMaxInFlightConfig = "cassandra.client.asyncMaxInFlight";
+        public final static String AsyncThreadsConfig = "cassandra.client.asyncThreads";
+        public final static String BufferPoolBytesConfig = "cassandra.client.bufferPoolBytes";
+        public final static String DiskCacheDirConfig = "cassandra.client.diskCacheDir";
+        public final static String DiskCacheSegmentBytesConfig = "cassandra.client.diskCacheSegmentBytes";
+        public final static String DiskCacheSegmentsConfig = "cassandra.client.diskCacheSegments";
+        public final static String DedupConfig = "cassandra.client.dedup";
+        public final static String CodecConfig = "cassandra.client.codec";
 }
@@ -0,0 +1,205 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Creates many files with a fraction of the round trips of
+ * {@link IFileSystem#createFile}.
+ *
+ * Every parent folder is checked, and created if missing, once per batch. A
+ * file is looked up by its path only when it may already exist, files in a
+ * folder the batch created need no lookup at all. The data of every file is written as it is
+ * added, but the FileMeta rows and their folder entries are only committed in
+ * mutations of up to <code>MaxRows</code> rows, when the batch is flushed or
+ * closed. Until then the files added are not visible.
+ *
+ * If committing fails, the files of the failed mutation are rolled back and
+ * the error is thrown; the files committed before stay. A batch is used by
+ * one thread at a time.
+ */
+public class FileBatch implements Closeable
+{
+    private static Logger LOGGER = Logger.getLogger(FileBatch.class);
+    // most FileMeta rows, and bytes of them, committed in one mutation
+    private final static int MaxRows = 512;
+    private final static long MaxBytes = 4 << 20;
+    private final CassandraFacade facade;
+    private final IFileSystem fs;
+    // every folder seen so far, and whether the batch created it
+    private final Map<String, Boolean> folders = new HashMap<>();
+    // the layouts of the files committed by the batch, by path
+    private final Map<String, FileLayout> files = new HashMap<>();
+    private final Map<String, Map<String, byte[]>> rows = new HashMap<>();
+    private final List<CFileOutputStream> pending = new ArrayList<>();
+    private long pendingBytes = 0;
+    private long committed = 0;
+    private boolean closed = false;
+
+    FileBatch(CassandraFacade facade, IFileSystem fs)
+    {
+        this.facade = facade;
+        this.fs = fs;
+    }
+
+    public void createFile(String path, byte[] content) throws IOException
+    {
+        createFile(path, new ByteArrayInputStream(content), content.length);
+    }
+
+    /**
+     * Writes everything left in <code>in</code> as the file at
+     * <code>path</code>, replacing it if it exists. The stream is not closed.
+     *
+     * @param expectedLength the expected length of the file, negative if it
+     *            is not known
+     */
+    public void createFile(String path, InputStream in, long expectedLength) throws IOException
+    {
+        CFileOutputStream out = create(path, expectedLength);
+        try {
+            out.transferFrom(in);
+        } catch (IOException | RuntimeException e) {
+            out.abort();
+            throw e;
+        }
+        out.close();
+    }
+
+    /**
+     * Opens a stream that writes the file at <code>path</code>. Its metadata
+     * is committed by the batch some time after the stream is closed.
+     */
+    public CFileOutputStream create(String path, long expectedLength) throws IOException
+    {
+        if (closed)
+            throw new IOException("Batch closed");
+        PathUtil.checkPath(path);
+        path = PathUtil.normalizePath(path);
+        Path filePath = new Path(path);
+        boolean created = folder(filePath.getParentPath());
+        // a file added twice replaces the committed copy
+        for (CFileOutputStream out : pending) {
+            if (out.getPath().equals(path)) {
+                flush();
+                break;
+            }
+        }
+
+        FileLayout previous = files.containsKey(path) || created ? files.get(path) : lookup(path);
+        String uuid = previous == null ? UUID.randomUUID().toString() : previous.getUUID();
+        return new CFileOutputStream(facade, path, uuid, previous, false,
+                BlockSizeChooser.choose(expectedLength, false), this);
+    }
+
+    /**
+     * Commits the metadata of every file closed so far.
+     */
+    public void flush() throws IOException
+    {
+        if (rows.isEmpty())
+            return;
+        List<CFileOutputStream> streams = new ArrayList<>(pending);
+        Map<String, Map<String, byte[]>> metaData = new HashMap<>(rows);
+        List<DirEntry> entries = new ArrayList<>(streams.size());
+        Map<String, Collection<String>> deletions = new HashMap<>();
+        for (CFileOutputStream out : streams) {
+            entries.add(out.getDirEntry());
+            if (!out.droppedColumns().isEmpty())
+                deletions.put(out.getLayout().getUUID(), out.droppedColumns());
+        }
+        pending.clear();
+        rows.clear();
+        pendingBytes = 0;
+        try {
+            facade.putFileMeta(metaData, deletions, entries);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to commit " + metaData.size() + " files, rolling them back", e);
+            for (CFileOutputStream out : streams)
+                out.rollback();
+            throw e instanceof IOException ? (IOException) e : new IOException("Failed to commit files", e);
+        }
+
+        for (CFileOutputStream out : streams) {
+            out.committed();
+            files.put(out.getPath(), out.getLayout());
+        }
+        committed += streams.size();
+        LOGGER.debug("Committed " + streams.size() + " files in one mutation, " + committed + " so far");
+    }
+
+    /**
+     * Commits what is left. The batch can not be used afterwards.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        flush();
+    }
+
+    /**
+     * Number of files committed so far.
+     */
+    public long getCommitted()
+    {
+        return committed;
+    }
+
+    /**
+     * Queues the FileMeta columns of a closed stream, committing the batch
+     * when it is full.
+     */
+    void add(CFileOutputStream out, Map<String, byte[]> meta) throws IOException
+    {
+        pending.add(out);
+        rows.put(out.getLayout().getUUID(), meta);
+        for (byte[] value : meta.values())
+            pendingBytes += value.length;
+        if (rows.size() >= MaxRows || pendingBytes >= MaxBytes)
+            flush();
+    }
+
+    /**
+     * Creates the folder <code>path</code> if it does not exist.
+     *
+     * @return whether the batch created it, so nothing else is in it
+     * @throws IOException if <code>path</code> is a file
+     */
+    private boolean folder(String path) throws IOException
+    {
+        Boolean created = folders.get(path);
+        if (created != null)
+            return created;
+
+        // a folder deleted by another client may still be cached
+        PathCache.Resolved folder = facade.resolveChecked(path);
+        if (folder != null && !folder.isDir())
+            throw new IOException("'" + path + "' is a file, it can not hold other files");
+        created = folder == null;
+        if (created)
+            fs.mkdir(path);
+        folders.put(path, created);
+        return created;
+    }
+
+    /**
+     * The layout of the file at <code>path</code>, null if there is none.
+     */
+    private FileLayout lookup(String path) throws IOException
+    {
+        return facade.loadFile(path);
+    }
+}
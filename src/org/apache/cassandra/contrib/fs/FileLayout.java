@@ -0,0 +1,726 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.contrib.fs.util.Bytes;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+
+/**
+ * How the data of a file is laid out in FileData, as recorded in its FileMeta
+ * row.
+ *
+ * Block i of the file is stored in row <code>uuid_g_$i</code>, where g is the
+ * generation of the file. Every time a file is replaced its blocks go to a new
+ * generation, and the FileMeta mutation that commits the new content also
+ * switches the Generation column over to it, so readers see either the old
+ * blocks or the new ones, never a mix. The blocks of the old generation are
+ * reclaimed in the background. Files written before generations were recorded
+ * keep their blocks in rows <code>uuid_$i</code>. With layout
+ * {@link #WholeBlock} the row has a single Chunk column holding the whole block.
+ * With layout {@link #SubBlocks} the block is split into columns of
+ * <code>subBlockSize</code> bytes named <code>Chunk$00000000</code>,
+ * <code>Chunk$00000001</code>..., so a column slice returns only the part of a
+ * block that a range read needs. Files written before the layout was recorded
+ * have no Layout column and are read as {@link #WholeBlock}. Files smaller
+ * than the inline threshold have layout {@link #Inline}: their content is kept
+ * in the Data column of FileMeta and they have no FileData rows at all.
+ *
+ * With layout {@link #Deduplicated} a block is stored in a row keyed by the
+ * SHA-256 of its content, with a Chunk column holding the block and a Length
+ * column to check for it cheaply. The Chunks column of FileMeta lists the
+ * digests of the blocks of the file, and the ChunkRefs counters count how many
+ * files refer to every row, so identical blocks are stored once and the rows
+ * are only reclaimed when the last file referring to them goes away.
+ *
+ * Every file records the block size it was written with in the BlockSize column
+ * of FileMeta, see {@link BlockSizeChooser}. Files written before it was
+ * recorded are read with the configured block size.
+ *
+ * The blocks of a file with a {@link ChunkCodec} are compressed column by
+ * column, its Codec column of FileMeta names the codec. Chunk lengths, offsets
+ * and sub-block sizes always refer to the uncompressed data.
+ *
+ * Row keys of a generation are never reused by another one, and appending
+ * only ever lengthens the last block, so blocks of files with a generation are
+ * cached under version 0 like deduplicated blocks, which never change: a
+ * cached block is stale only if its length is. The blocks of files without a
+ * generation are cached under the LastModifiedTime of the file, so cached
+ * blocks of an older version of the file are not served.
+ */
+public class FileLayout
+{
+    public final static int WholeBlock = 1;
+    public final static int SubBlocks = 2;
+    public final static int Inline = 3;
+    public final static int Deduplicated = 4;
+    private final static int DigestSize = 32;
+    // upper bound of the columns sent in one mutation when writing sub-blocks
+    private final static int MaxMutationBytes = 1 << 20;
+    // upper bound of the blocks fetched by one multiget
+    private final static int MaxMultigetBytes = 16 << 20;
+    // keys probed per round trip for rows past the last block
+    private final static int ProbeWindow = 64;
+    // the columns of FileMeta a layout is read from
+    final static String[] MetaColumns = { FSConstants.LengthAttr, FSConstants.LayoutAttr,
+            FSConstants.SubBlockSizeAttr, FSConstants.LastModifiedTime, FSConstants.DataAttr, FSConstants.ChunksAttr,
+            FSConstants.CodecAttr, FSConstants.BlockSizeAttr, FSConstants.GenerationAttr };
+    private static Logger LOGGER = Logger.getLogger(FileLayout.class);
+    private final String uuid;
+    private final long length;
+    private final int blockSize;
+    private final int version;
+    private final int subBlockSize;
+    private final long modified;
+    // content of an inline file
+    private final byte[] data;
+    // row keys of the blocks of a deduplicated file
+    private final String[] chunks;
+    private final ChunkCodec codec;
+    // generation of the blocks of the file, 0 for the rows uuid_$i
+    private final long generation;
+
+    FileLayout(String uuid, long length, int blockSize, int version, int subBlockSize)
+    {
+        this(uuid, length, blockSize, version, subBlockSize, 0, null, null);
+    }
+
+    FileLayout(String uuid, long length, int blockSize, int version, int subBlockSize, long modified, byte[] data,
+            String[] chunks)
+    {
+        this(uuid, length, blockSize, version, subBlockSize, modified, data, chunks, ChunkCodec.NONE);
+    }
+
+    FileLayout(String uuid, long length, int blockSize, int version, int subBlockSize, long modified, byte[] data,
+            String[] chunks, ChunkCodec codec)
+    {
+        this(uuid, length, blockSize, version, subBlockSize, modified, data, chunks, codec, 0);
+    }
+
+    FileLayout(String uuid, long length, int blockSize, int version, int subBlockSize, long modified, byte[] data,
+            String[] chunks, ChunkCodec codec, long generation)
+    {
+        this.uuid = uuid;
+        this.generation = generation;
+        this.codec = codec;
+        this.data = data;
+        this.chunks = chunks;
+        this.modified = modified;
+        this.length = length;
+        this.blockSize = blockSize;
+        this.version = version;
+        this.subBlockSize = subBlockSize;
+    }
+
+    /**
+     * The layout new files are written with.
+     */
+    public static FileLayout create(String uuid)
+    {
+        return create(uuid, FSConstants.BlockSize);
+    }
+
+    /**
+     * The layout new files are written with, with blocks of
+     * <code>blockSize</code> bytes.
+     */
+    public static FileLayout create(String uuid, int blockSize)
+    {
+        if (FSConstants.Dedup)
+            return new FileLayout(uuid, 0, blockSize, Deduplicated, 0, 0, null, new String[0]);
+        if (FSConstants.SubBlockSize > 0)
+            return new FileLayout(uuid, 0, blockSize, SubBlocks, FSConstants.SubBlockSize);
+        return new FileLayout(uuid, 0, blockSize, WholeBlock, 0);
+    }
+
+    /**
+     * The layout of a file whose whole content is stored in FileMeta.
+     */
+    public static FileLayout inline(String uuid, byte[] content)
+    {
+        return new FileLayout(uuid, content.length, FSConstants.BlockSize, Inline, 0, 0, content, null);
+    }
+
+    /**
+     * This layout with the given length and, if deduplicated, the row keys of
+     * its blocks, as written by an upload.
+     */
+    public FileLayout withChunks(long length, List<String> keys)
+    {
+        String[] chunks = version == Deduplicated ? keys.toArray(new String[keys.size()]) : null;
+        return new FileLayout(uuid, length, blockSize, version, subBlockSize, modified, data, chunks, codec,
+                generation);
+    }
+
+    /**
+     * This layout with its blocks compressed by <code>codec</code>. Only a
+     * file without blocks yet can change its codec.
+     */
+    public FileLayout withCodec(ChunkCodec codec)
+    {
+        return new FileLayout(uuid, length, blockSize, version, subBlockSize, modified, data, chunks, codec,
+                generation);
+    }
+
+    /**
+     * This layout with its blocks in generation <code>generation</code>. Only
+     * layouts that keep their blocks in rows of the file have generations.
+     */
+    public FileLayout withGeneration(long generation)
+    {
+        if (!isKeyedByFile())
+            return this;
+        return new FileLayout(uuid, length, blockSize, version, subBlockSize, modified, data, chunks, codec,
+                generation);
+    }
+
+    /**
+     * Reads the layout of an existing file from its FileMeta row.
+     */
+    public static FileLayout load(CassandraFacade facade, String uuid) throws IOException
+    {
+        return fromMeta(uuid, facade.getColumns(FSConstants.FileMetaCF, uuid, MetaColumns));
+    }
+
+    /**
+     * Builds the layout of a file from FileMeta columns already read.
+     */
+    public static FileLayout fromMeta(String uuid, Map<String, byte[]> meta) throws IOException
+    {
+        if (!meta.containsKey(FSConstants.LengthAttr))
+            throw new IOException("No metadata found for file: " + uuid);
+
+        long length = Bytes.toLong(meta.get(FSConstants.LengthAttr));
+        int version = meta.containsKey(FSConstants.LayoutAttr)
+                ? Bytes.toInt(meta.get(FSConstants.LayoutAttr)) : WholeBlock;
+        int subBlockSize = meta.containsKey(FSConstants.SubBlockSizeAttr)
+                ? Bytes.toInt(meta.get(FSConstants.SubBlockSizeAttr)) : 0;
+        long modified = meta.containsKey(FSConstants.LastModifiedTime)
+                ? Bytes.toLong(meta.get(FSConstants.LastModifiedTime)) : 0;
+        int blockSize = meta.containsKey(FSConstants.BlockSizeAttr)
+                ? Bytes.toInt(meta.get(FSConstants.BlockSizeAttr)) : FSConstants.BlockSize;
+        if (blockSize <= 0)
+            throw new IOException("Invalid block size " + blockSize + " for file: " + uuid);
+        if (version == SubBlocks && subBlockSize <= 0)
+            throw new IOException("Invalid sub-block size " + subBlockSize + " for file: " + uuid);
+        if (version == Inline && !meta.containsKey(FSConstants.DataAttr))
+            throw new IOException("Missing inline data for file: " + uuid);
+        if (version != WholeBlock && version != SubBlocks && version != Inline && version != Deduplicated)
+            throw new IOException("Unknown layout " + version + " for file: " + uuid);
+        byte[] data = version == Inline ? meta.get(FSConstants.DataAttr) : null;
+        String[] chunks = null;
+        if (version == Deduplicated) {
+            byte[] digests = meta.get(FSConstants.ChunksAttr);
+            if (digests == null || digests.length % DigestSize != 0)
+                throw new IOException("Invalid chunk list for file: " + uuid);
+            chunks = new String[digests.length / DigestSize];
+            for (int i = 0; i < chunks.length; i++)
+                chunks[i] = new String(Hex.encodeHex(Arrays.copyOfRange(digests, i * DigestSize, (i + 1) * DigestSize)));
+        }
+        ChunkCodec codec = meta.containsKey(FSConstants.CodecAttr)
+                ? ChunkCodec.forName(Bytes.toString(meta.get(FSConstants.CodecAttr))) : ChunkCodec.NONE;
+        // a file replaced by one of another layout may keep a stale generation
+        long generation = (version == WholeBlock || version == SubBlocks) && meta.containsKey(FSConstants.GenerationAttr)
+                ? Bytes.toLong(meta.get(FSConstants.GenerationAttr)) : 0;
+        FileLayout layout = new FileLayout(uuid, length, blockSize, version, subBlockSize, modified, data,
+                chunks, codec, generation);
+        if (chunks != null && chunks.length != layout.getNumOfChunks())
+            throw new IOException("Chunk list of file " + uuid + " does not match its length");
+        return layout;
+    }
+
+    public String getUUID()
+    {
+        return uuid;
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+    public int getVersion()
+    {
+        return version;
+    }
+
+    public ChunkCodec getCodec()
+    {
+        return codec;
+    }
+
+    public int getSubBlockSize()
+    {
+        return subBlockSize;
+    }
+
+    public long getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * The LastModifiedTime of the file when the layout was loaded.
+     */
+    public long getModified()
+    {
+        return modified;
+    }
+
+    public int getNumOfChunks()
+    {
+        return (int) (length / blockSize) + (length % blockSize == 0 ? 0 : 1);
+    }
+
+    public String chunkKey(int index)
+    {
+        if (version == Deduplicated)
+            return chunks[index];
+        if (generation != 0)
+            return uuid + "_" + generation + "_$" + index;
+        return uuid + "_$" + index;
+    }
+
+    /**
+     * Whether block i is stored in a row named after the file and the block,
+     * so writing a block of the same generation replaces it in place.
+     */
+    public boolean isKeyedByFile()
+    {
+        return version == WholeBlock || version == SubBlocks;
+    }
+
+    /**
+     * The size of block <code>index</code>, only the last one may be shorter
+     * than the block size.
+     */
+    public int chunkLength(int index)
+    {
+        return (int) Math.min((long) blockSize, length - (long) index * blockSize);
+    }
+
+    /**
+     * The columns of FileMeta that describe this layout.
+     */
+    public Map<String, byte[]> toMeta()
+    {
+        Map<String, byte[]> map = new HashMap<>();
+        map.put(FSConstants.LayoutAttr, Bytes.toBytes(version));
+        if (version != Inline)
+            map.put(FSConstants.BlockSizeAttr, Bytes.toBytes(blockSize));
+        if (version == SubBlocks)
+            map.put(FSConstants.SubBlockSizeAttr, Bytes.toBytes(subBlockSize));
+        if (version == Inline)
+            map.put(FSConstants.DataAttr, data);
+        if (version == Deduplicated) {
+            byte[] digests = new byte[chunks.length * DigestSize];
+            for (int i = 0; i < chunks.length; i++) {
+                try {
+                    System.arraycopy(Hex.decodeHex(chunks[i].toCharArray()), 0, digests, i * DigestSize, DigestSize);
+                } catch (DecoderException e) {
+                    throw new IllegalStateException("Invalid chunk key " + chunks[i], e);
+                }
+            }
+            map.put(FSConstants.ChunksAttr, digests);
+        }
+        // written even when it is none, it replaces the codec of the file overwritten
+        map.put(FSConstants.CodecAttr, Bytes.toBytes(codec.getName()));
+        if (generation != 0)
+            map.put(FSConstants.GenerationAttr, Bytes.toBytes(generation));
+        return map;
+    }
+
+    /**
+     * Fetches a whole block, or null if its row does not exist. Blocks are
+     * served from and added to the chunk cache, inline files are served from
+     * their metadata.
+     */
+    public byte[] readChunk(CassandraFacade facade, int index) throws IOException
+    {
+        if (version == Inline)
+            return index == 0 ? data : null;
+
+        ChunkCache cache = facade.getChunkCache();
+        byte[] chunk = cache.get(chunkKey(index), cacheVersion(), chunkLength(index));
+        if (chunk != null)
+            return chunk;
+
+        chunk = fetchChunk(facade, index);
+        if (chunk != null)
+            cache.put(chunkKey(index), cacheVersion(), chunk);
+        return chunk;
+    }
+
+    private byte[] fetchChunk(CassandraFacade facade, int index) throws IOException
+    {
+        if (version != SubBlocks) {
+            byte[] stored = facade.get(FSConstants.FileDataCF, chunkKey(index), FSConstants.ChunkAttr);
+            return stored == null ? null : codec.decode(stored);
+        }
+
+        int subBlocks = (chunkLength(index) + subBlockSize - 1) / subBlockSize;
+        List<byte[]> columns = facade.getSlice(FSConstants.FileDataCF, chunkKey(index),
+                subBlockName(0), subBlockName(subBlocks - 1), subBlocks);
+        if (columns.isEmpty())
+            return null;
+        return decode(columns);
+    }
+
+    /**
+     * Reads up to <code>len</code> bytes of block <code>index</code> starting
+     * at <code>offset</code> inside it. With sub-blocks only the columns that
+     * cover the range are fetched.
+     *
+     * @return the number of bytes copied, or -1 if the block does not exist
+     */
+    public int readChunk(CassandraFacade facade, int index, int offset, byte[] b, int off, int len) throws IOException
+    {
+        len = Math.min(len, chunkLength(index) - offset);
+        if (len <= 0)
+            return 0;
+
+        byte[] chunk = version == Inline ? data
+                : facade.getChunkCache().get(chunkKey(index), cacheVersion(), chunkLength(index));
+        int dataOffset;
+        if (chunk != null) {
+            dataOffset = offset;
+        }
+        else if (version != SubBlocks) {
+            chunk = fetchChunk(facade, index);
+            if (chunk != null)
+                facade.getChunkCache().put(chunkKey(index), cacheVersion(), chunk);
+            dataOffset = offset;
+        }
+        else {
+            int first = offset / subBlockSize;
+            int last = (offset + len - 1) / subBlockSize;
+            List<byte[]> columns = facade.getSlice(FSConstants.FileDataCF, chunkKey(index),
+                    subBlockName(first), subBlockName(last), last - first + 1);
+            chunk = columns.isEmpty() ? null : decode(columns);
+            dataOffset = offset - first * subBlockSize;
+        }
+        if (chunk == null)
+            return -1;
+
+        int num = Math.max(0, Math.min(len, chunk.length - dataOffset));
+        System.arraycopy(chunk, dataOffset, b, off, num);
+        return num;
+    }
+
+    /**
+     * The key of the row the remaining bytes of <code>content</code> are to
+     * be stored in as block <code>index</code>. A deduplicated block takes a
+     * reference to its row here, so the caller must record the key before
+     * writing it: if the write fails, the reference is still released.
+     */
+    public String claimChunk(CassandraFacade facade, int index, ByteBuffer content) throws IOException
+    {
+        if (version == Inline)
+            throw new IOException("Inline file " + uuid + " has no blocks to write");
+        if (version != Deduplicated)
+            return chunkKey(index);
+        String key = digest(codec, content);
+        facade.addCounters(FSConstants.ChunkRefsCF, Collections.singletonMap(key, 1L), FSConstants.RefsAttr);
+        return key;
+    }
+
+    /**
+     * Stores the remaining bytes of <code>content</code> as the part of block
+     * <code>index</code> that starts at <code>offset</code>, leaving the
+     * sub-blocks before it as they are, in the row <code>key</code> returned
+     * by {@link #claimChunk}. The offset must be a multiple of the sub-block
+     * size, a whole block can only be written from 0. The columns refer to
+     * the buffer, nothing is copied.
+     */
+    public void writeChunk(CassandraFacade facade, String key, int index, ByteBuffer content, int offset)
+            throws IOException
+    {
+        if (version == Inline)
+            throw new IOException("Inline file " + uuid + " has no blocks to write");
+        if (offset != 0 && (version != SubBlocks || offset % subBlockSize != 0))
+            throw new IllegalArgumentException("Block " + index + " of " + uuid + " can not be written from " + offset);
+        if (version == Deduplicated) {
+            writeSharedChunk(facade, key, content);
+            return;
+        }
+        facade.getChunkCache().invalidate(chunkKey(index));
+        if (version == WholeBlock) {
+            facade.putColumns(chunkKey(index), FSConstants.FileDataCF,
+                    Collections.singletonMap(FSConstants.ChunkAttr, codec.encode(content.duplicate())));
+            return;
+        }
+
+        int start = content.position();
+        int len = content.remaining();
+        Map<String, ByteBuffer> columns = new HashMap<>();
+        int batched = 0;
+        for (int i = offset / subBlockSize, pos = 0; pos < len; i++, pos += subBlockSize) {
+            int num = Math.min(subBlockSize, len - pos);
+            // Thrift miscounts the length of sliced buffers, so every column is
+            // a duplicate positioned over its part of the block
+            ByteBuffer value = content.duplicate();
+            value.limit(start + pos + num);
+            value.position(start + pos);
+            columns.put(subBlockName(i), codec.encode(value));
+            batched += num;
+            if (batched + subBlockSize > MaxMutationBytes) {
+                facade.putColumns(chunkKey(index), FSConstants.FileDataCF, columns);
+                columns = new HashMap<>();
+                batched = 0;
+            }
+        }
+        if (!columns.isEmpty())
+            facade.putColumns(chunkKey(index), FSConstants.FileDataCF, columns);
+        LOGGER.debug("Block " + chunkKey(index) + " written as " + ((len + subBlockSize - 1) / subBlockSize)
+                + " sub-blocks from " + offset);
+    }
+
+    /**
+     * Stores a deduplicated block in its row, which the caller took a
+     * reference to. The row is skipped when it is already stored and other
+     * files refer to it. When this reference is the only one, the row may be
+     * queued for deletion by the chunk reclaimer since the last file that
+     * referred to it let it go, so it is written again: the reclaimer deletes
+     * with the timestamp of the moment the row was queued, and the columns
+     * written now are newer.
+     */
+    private void writeSharedChunk(CassandraFacade facade, String key, ByteBuffer content) throws IOException
+    {
+        Long refs = facade.getCounters(FSConstants.ChunkRefsCF, Collections.singletonList(key), FSConstants.RefsAttr)
+                .get(key);
+        if (refs != null && refs > 1 && facade.get(FSConstants.FileDataCF, key, FSConstants.LengthAttr) != null) {
+            LOGGER.debug("Block " + key + " already stored, " + content.remaining() + " bytes not sent");
+            return;
+        }
+        Map<String, ByteBuffer> columns = new HashMap<>();
+        columns.put(FSConstants.ChunkAttr, codec.encode(content.duplicate()));
+        columns.put(FSConstants.LengthAttr, ByteBuffer.wrap(Bytes.toBytes((long) content.remaining())));
+        facade.putColumns(key, FSConstants.FileDataCF, columns);
+    }
+
+    /**
+     * The key of the row of a deduplicated block. Blocks compressed with
+     * different codecs are stored differently and get different keys.
+     */
+    static String digest(ChunkCodec codec, ByteBuffer content)
+    {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            if (codec != ChunkCodec.NONE)
+                md.update(Bytes.toBytes(codec.getName()));
+            md.update(content.duplicate());
+            return new String(Hex.encodeHex(md.digest()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Hands blocks <code>fromIndex</code> to the last one over to the chunk
+     * reclaimer.
+     */
+    public void reclaimChunks(CassandraFacade facade, int fromIndex) throws IOException
+    {
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = fromIndex; i < getNumOfChunks(); i++)
+            indexes.add(i);
+        reclaimChunks(facade, indexes);
+    }
+
+    /**
+     * Hands every block of a file that is being deleted over to the chunk
+     * reclaimer, including rows past its length that a failed or shrinking
+     * write left behind. Those are found by probing the keys after the last
+     * block, window by window, until a window has no rows at all.
+     */
+    public void reclaimAll(CassandraFacade facade) throws IOException
+    {
+        reclaimChunks(facade, 0);
+        if (!isKeyedByFile())
+            return;
+        int reclaimed = 0;
+        for (int from = getNumOfChunks(); ; from += ProbeWindow) {
+            List<String> window = new ArrayList<>(ProbeWindow);
+            for (int i = from; i < from + ProbeWindow; i++)
+                window.add(chunkKey(i));
+            List<String> found = new ArrayList<>();
+            for (Map.Entry<String, Integer> count : facade.countColumns(FSConstants.FileDataCF, window, 1).entrySet()) {
+                if (count.getValue() > 0)
+                    found.add(count.getKey());
+            }
+            if (found.isEmpty())
+                break;
+            reclaimKeys(facade, found);
+            reclaimed += found.size();
+        }
+        if (reclaimed > 0)
+            LOGGER.debug("Reclaiming " + reclaimed + " chunks past the end of " + uuid);
+    }
+
+    /**
+     * Hands the given blocks over to the chunk reclaimer. Inline files have no
+     * blocks to reclaim.
+     */
+    public void reclaimChunks(CassandraFacade facade, Collection<Integer> indexes) throws IOException
+    {
+        List<String> keys = new ArrayList<>();
+        for (int index : indexes)
+            keys.add(chunkKey(index));
+        reclaimKeys(facade, keys);
+    }
+
+    /**
+     * Hands the rows <code>keys</code> of blocks of this layout over to the
+     * chunk reclaimer and drops them from the chunk cache. The rows of
+     * deduplicated blocks only lose a reference and are reclaimed once no file
+     * refers to them.
+     */
+    public void reclaimKeys(CassandraFacade facade, List<String> keys) throws IOException
+    {
+        if (version == Inline || keys.isEmpty())
+            return;
+        try {
+            if (version == Deduplicated) {
+                facade.getChunkReclaimer().release(keys);
+                return;
+            }
+            for (String key : keys)
+                facade.getChunkCache().invalidate(key);
+            facade.getChunkReclaimer().reclaim(keys);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reclaiming chunks of " + uuid);
+        }
+    }
+
+    /**
+     * Reads block 0 of every layout with as few multigets as possible. Blocks
+     * found in the chunk cache are not fetched, the others are added to it.
+     *
+     * @return the blocks keyed by file UUID, files without data are left out
+     */
+    public static Map<String, byte[]> readFirstChunks(CassandraFacade facade, Collection<FileLayout> layouts) throws IOException
+    {
+        Map<String, byte[]> result = new HashMap<>();
+        List<FileLayout> wholeBlocks = new ArrayList<>();
+        List<FileLayout> subBlocks = new ArrayList<>();
+        for (FileLayout layout : layouts) {
+            if (layout.getNumOfChunks() == 0)
+                continue;
+            if (layout.version == Inline) {
+                result.put(layout.uuid, layout.data);
+                continue;
+            }
+            byte[] chunk = facade.getChunkCache().get(layout.chunkKey(0), layout.cacheVersion(), layout.chunkLength(0));
+            if (chunk != null)
+                result.put(layout.uuid, chunk);
+            else if (layout.version != SubBlocks)
+                wholeBlocks.add(layout);
+            else
+                subBlocks.add(layout);
+        }
+        fetchFirstChunks(facade, wholeBlocks, result);
+        fetchFirstChunks(facade, subBlocks, result);
+        return result;
+    }
+
+    /**
+     * Fetches block 0 of layouts that all have the same kind of rows, in
+     * batches of at most MaxMultigetBytes. Deduplicated files may share their
+     * first block.
+     */
+    private static void fetchFirstChunks(CassandraFacade facade, List<FileLayout> layouts, Map<String, byte[]> result) throws IOException
+    {
+        int i = 0;
+        while (i < layouts.size()) {
+            Map<String, List<FileLayout>> batch = new HashMap<>();
+            long bytes = 0;
+            int count = 1;
+            while (i < layouts.size() && (batch.isEmpty() || bytes + layouts.get(i).chunkLength(0) <= MaxMultigetBytes)) {
+                FileLayout layout = layouts.get(i++);
+                List<FileLayout> sharing = batch.get(layout.chunkKey(0));
+                if (sharing == null) {
+                    sharing = new ArrayList<>(1);
+                    batch.put(layout.chunkKey(0), sharing);
+                }
+                sharing.add(layout);
+                bytes += layout.chunkLength(0);
+                if (layout.version == SubBlocks)
+                    count = Math.max(count, (layout.chunkLength(0) + layout.subBlockSize - 1) / layout.subBlockSize);
+            }
+
+            Map<String, List<byte[]>> rows;
+            if (layouts.get(0).version != SubBlocks)
+                rows = facade.multigetSlice(FSConstants.FileDataCF, batch.keySet(),
+                        FSConstants.ChunkAttr, FSConstants.ChunkAttr, 1);
+            else
+                rows = facade.multigetSlice(FSConstants.FileDataCF, batch.keySet(),
+                        subBlockName(0), subBlockName(count - 1), count);
+            for (Map.Entry<String, List<byte[]>> row : rows.entrySet()) {
+                // files sharing a block share its codec too
+                byte[] chunk = batch.get(row.getKey()).get(0).decode(row.getValue());
+                for (FileLayout layout : batch.get(row.getKey())) {
+                    facade.getChunkCache().put(row.getKey(), layout.cacheVersion(), chunk);
+                    result.put(layout.uuid, chunk);
+                }
+            }
+            LOGGER.debug("Fetched " + rows.size() + " of " + batch.size() + " first blocks in one multiget");
+        }
+    }
+
+    private long cacheVersion()
+    {
+        return version == Deduplicated || generation != 0 ? 0 : modified;
+    }
+
+    static String subBlockName(int index)
+    {
+        return FSConstants.ChunkAttr + "$" + String.format("%08d", index);
+    }
+
+    /**
+     * The data held by stored columns, in order.
+     */
+    private byte[] decode(List<byte[]> columns) throws IOException
+    {
+        if (codec == ChunkCodec.NONE)
+            return concat(columns);
+        List<byte[]> decoded = new ArrayList<>(columns.size());
+        for (byte[] column : columns)
+            decoded.add(codec.decode(column));
+        return concat(decoded);
+    }
+
+    private static byte[] concat(List<byte[]> columns)
+    {
+        if (columns.size() == 1)
+            return columns.get(0);
+        int size = 0;
+        for (byte[] column : columns)
+            size += column.length;
+        byte[] result = new byte[size];
+        int pos = 0;
+        for (byte[] column : columns) {
+            System.arraycopy(column, 0, result, pos, column.length);
+            pos += column.length;
+        }
+        return result;
+    }
+}
@@ -2,7 +2,9 @@ package org.apache.cassandra.contrib.fs;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
+import java.util.Map;
 
 public interface IFileSystem {
 
@@ -11,18 +13,40 @@ public interface IFileSystem {
 
 	public abstract void createFile(String path, InputStream in)
 		throws IOException;
+
+	public abstract void createFile(String path, InputStream in, long expectedLength)
+		throws IOException;
+
+	public abstract void createFiles(Map<String, InputStream> files) throws IOException;
+
+	public abstract FileBatch createBatch() throws IOException;
 	
+	public abstract CFileOutputStream create(String path) throws IOException;
+
+	public abstract CFileOutputStream create(String path, long expectedLength, boolean randomAccess)
+			throws IOException;
+
+	public abstract CFileOutputStream append(String path) throws IOException;
+
 	public abstract boolean deleteFile(String path) throws IOException;
 
 	public abstract boolean deleteDir(String path, boolean recursive)
 			throws IOException;
 
 	public abstract InputStream readFile(String path) throws IOException;
+
+	public abstract CFileInputStream open(String path) throws IOException;
+
+	public abstract Map<String, byte[]> readFiles(List<String> paths) throws IOException;
+
+	public abstract long transferTo(String path, WritableByteChannel out) throws IOException;
 	
 	public abstract boolean mkdir(String path) throws IOException;
 
 	public abstract List<Path> list(String path) throws IOException;
 
+	public abstract Path stat(String path) throws IOException;
+
 	public abstract boolean existDir(String path) throws IOException;
 
 	public abstract boolean existFile(String path) throws IOException;
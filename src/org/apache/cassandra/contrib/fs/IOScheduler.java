@@ -0,0 +1,254 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A fixed set of workers that runs every chunk fetch, prefetch and cleanup of
+ * the client, so the number of threads does not grow with the number of open
+ * streams.
+ *
+ * Work is queued per {@link Lane}, usually one lane per stream. Workers serve
+ * the lanes that have work in round robin, one task at a time, so a stream with
+ * a deep queue cannot starve the others. On JDKs that have them, the workers
+ * can be virtual threads.
+ */
+public class IOScheduler
+{
+    private static Logger LOGGER = Logger.getLogger(IOScheduler.class);
+    // lanes that have queued tasks, in the order they are served
+    private final ArrayDeque<Lane> ready = new ArrayDeque<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger lanes = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong maxQueued = new AtomicLong();
+    private volatile boolean shutdown = false;
+
+    /**
+     * The tasks of one stream or background job.
+     */
+    public class Lane
+    {
+        private final String name;
+        private final ArrayDeque<FutureTask<?>> tasks = new ArrayDeque<>();
+        private boolean closed = false;
+
+        Lane(String name)
+        {
+            this.name = name;
+        }
+
+        public <T> Future<T> submit(Callable<T> task)
+        {
+            FutureTask<T> future = new FutureTask<>(task);
+            enqueue(this, future);
+            return future;
+        }
+
+        public Future<?> submit(Runnable task)
+        {
+            FutureTask<Object> future = new FutureTask<>(task, null);
+            enqueue(this, future);
+            return future;
+        }
+
+        /**
+         * Drops the tasks that did not start yet. Tasks already running finish.
+         */
+        public void close()
+        {
+            synchronized (ready) {
+                if (closed)
+                    return;
+                closed = true;
+                for (FutureTask<?> task : tasks)
+                    task.cancel(false);
+                queued.addAndGet(-tasks.size());
+                tasks.clear();
+                ready.remove(this);
+            }
+            lanes.decrementAndGet();
+        }
+
+        public int getQueueDepth()
+        {
+            synchronized (ready) {
+                return tasks.size();
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+    }
+
+    public IOScheduler(int threads, boolean virtualThreads)
+    {
+        ThreadFactory factory = virtualThreads ? virtualThreadFactory() : null;
+        boolean virtual = factory != null;
+        if (factory == null) {
+            if (virtualThreads)
+                LOGGER.warn("Virtual threads are not available, using platform threads for I/O");
+            factory = new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "CassandraFS-IO-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+        }
+
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            Thread worker = factory.newThread(new Worker());
+            workers.add(worker);
+            worker.start();
+        }
+        LOGGER.debug("I/O scheduler started with " + workers.size()
+                + (virtual ? " virtual" : " platform") + " workers");
+    }
+
+    public Lane newLane(String name)
+    {
+        lanes.incrementAndGet();
+        return new Lane(name);
+    }
+
+    /**
+     * Number of tasks waiting for a worker, over all lanes.
+     */
+    public int getQueueDepth()
+    {
+        return queued.get();
+    }
+
+    /**
+     * Highest queue depth seen so far.
+     */
+    public long getMaxQueueDepth()
+    {
+        return maxQueued.get();
+    }
+
+    public int getActiveCount()
+    {
+        return active.get();
+    }
+
+    /**
+     * Number of lanes opened and not closed yet.
+     */
+    public int getLaneCount()
+    {
+        return lanes.get();
+    }
+
+    public long getCompletedCount()
+    {
+        return completed.get();
+    }
+
+    public int getWorkerCount()
+    {
+        return workers.size();
+    }
+
+    public void shutdown()
+    {
+        shutdown = true;
+        synchronized (ready) {
+            ready.notifyAll();
+        }
+    }
+
+    private void enqueue(Lane lane, FutureTask<?> task)
+    {
+        synchronized (ready) {
+            if (shutdown || lane.closed) {
+                task.cancel(false);
+                return;
+            }
+            if (lane.tasks.isEmpty())
+                ready.addLast(lane);
+            lane.tasks.addLast(task);
+            int depth = queued.incrementAndGet();
+            if (depth > maxQueued.get())
+                maxQueued.set(depth);
+            ready.notify();
+        }
+    }
+
+    private FutureTask<?> next() throws InterruptedException
+    {
+        synchronized (ready) {
+            while (ready.isEmpty()) {
+                if (shutdown)
+                    return null;
+                ready.wait();
+            }
+            Lane lane = ready.pollFirst();
+            FutureTask<?> task = lane.tasks.pollFirst();
+            // a lane with more work goes to the back of the line
+            if (!lane.tasks.isEmpty())
+                ready.addLast(lane);
+            queued.decrementAndGet();
+            return task;
+        }
+    }
+
+    class Worker implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try {
+                FutureTask<?> task;
+                while ((task = next()) != null) {
+                    active.incrementAndGet();
+                    try {
+                        task.run();
+                    } finally {
+                        active.decrementAndGet();
+                        completed.incrementAndGet();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                LOGGER.debug("I/O worker interrupted");
+            }
+        }
+    }
+
+    /**
+     * Thread.ofVirtual().factory() through reflection, null when the JDK has no
+     * virtual threads.
+     */
+    static ThreadFactory virtualThreadFactory()
+    {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, "CassandraFS-IO-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+}
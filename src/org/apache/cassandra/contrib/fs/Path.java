@@ -43,6 +43,21 @@ public class Path
         this.isDir = isDir;
     }
 
+    public Path(String parentPath, String name, boolean isDir, long length, Date creationTime, Date lastModTime,
+            String owner, String group, String uuid)
+    {
+        this.parentPath = parentPath;
+        this.name = name;
+        this.isDir = isDir;
+        this.length = length;
+        this.creationTime = creationTime;
+        this.lastModTime = lastModTime;
+        this.owner = owner;
+        this.group = group;
+        this.uuid = uuid;
+        url = parentPath + (parentPath.endsWith("/") ? "" : "/") + name;
+    }
+
     private String getNameFromURL(String url)
     {
         int index = url.lastIndexOf("/");
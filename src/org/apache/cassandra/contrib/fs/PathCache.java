@@ -0,0 +1,164 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In-process LRU cache of what the PathIndex rows resolve paths to: the UUID
+ * of the FileMeta row and whether it is a folder.
+ *
+ * The metadata mutations of this client update or drop the entries of the
+ * paths they touch, so its own creates and deletes are seen at once. Changes
+ * made by other clients are seen once the entry expires, <code>ttlMillis</code>
+ * after it was cached. Only paths that exist are cached, so a path created by
+ * another client is never hidden.
+ */
+public class PathCache
+{
+    private static Logger LOGGER = Logger.getLogger(PathCache.class);
+    private final ConcurrentLinkedHashMap<String, Resolved> paths;
+    private final long ttlMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    public static class Resolved
+    {
+        final String uuid;
+        final boolean dir;
+        final long expires;
+
+        Resolved(String uuid, boolean dir, long expires)
+        {
+            this.uuid = uuid;
+            this.dir = dir;
+            this.expires = expires;
+        }
+
+        public String getUUID()
+        {
+            return uuid;
+        }
+
+        public boolean isDir()
+        {
+            return dir;
+        }
+    }
+
+    /**
+     * @param capacity the most paths the cache holds, 0 disables it
+     * @param ttlMillis how long a path stays cached, 0 disables the cache
+     */
+    public PathCache(int capacity, long ttlMillis)
+    {
+        this.ttlMillis = ttlMillis;
+        if (capacity <= 0 || ttlMillis <= 0) {
+            paths = null;
+            return;
+        }
+        paths = new ConcurrentLinkedHashMap.Builder<String, Resolved>()
+                .maximumWeightedCapacity(capacity)
+                .listener(new EvictionListener<String, Resolved>()
+                {
+                    @Override
+                    public void onEviction(String key, Resolved value)
+                    {
+                        evictions.incrementAndGet();
+                    }
+                })
+                .build();
+        LOGGER.debug("Path cache enabled with a capacity of " + capacity + " paths for " + ttlMillis + " ms");
+    }
+
+    public boolean isEnabled()
+    {
+        return paths != null;
+    }
+
+    /**
+     * What <code>path</code> resolves to, or null if it is not cached or its
+     * entry expired.
+     */
+    public Resolved get(String path)
+    {
+        if (paths == null)
+            return null;
+        Resolved resolved = paths.get(path);
+        if (resolved != null && resolved.expires <= System.currentTimeMillis()) {
+            paths.remove(path, resolved);
+            expirations.incrementAndGet();
+            resolved = null;
+        }
+        if (resolved == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return resolved;
+    }
+
+    /**
+     * Caches what <code>path</code> resolves to.
+     *
+     * @return the entry, cached or not
+     */
+    public Resolved put(String path, String uuid, boolean dir)
+    {
+        Resolved resolved = new Resolved(uuid, dir, System.currentTimeMillis() + ttlMillis);
+        if (paths != null)
+            paths.put(path, resolved);
+        return resolved;
+    }
+
+    public void invalidate(String path)
+    {
+        if (paths != null)
+            paths.remove(path);
+    }
+
+    public void clear()
+    {
+        if (paths != null)
+            paths.clear();
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * Number of entries dropped because they were too old.
+     */
+    public long getExpirations()
+    {
+        return expirations.get();
+    }
+
+    public double getHitRate()
+    {
+        long requests = hits.get() + misses.get();
+        return requests == 0 ? 0 : (double) hits.get() / requests;
+    }
+
+    public int getSize()
+    {
+        return paths == null ? 0 : paths.size();
+    }
+}
@@ -0,0 +1,154 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Windowed read-ahead of the chunks of one file.
+ *
+ * At most <code>maxChunks</code> fetches are in flight or waiting to be consumed
+ * and their sizes never add up to more than <code>maxBytes</code> (a single chunk
+ * is always allowed so that a window smaller than a block still makes progress).
+ * New fetches are only issued when the consumer takes a chunk out of the window,
+ * so a slow reader holds back the fetching instead of filling the heap.
+ *
+ * The fetches run on the lane of the stream in the shared {@link IOScheduler}.
+ */
+class ReadAheadBuffer
+{
+    private static Logger LOGGER = Logger.getLogger(ReadAheadBuffer.class);
+    private final CassandraFacade facade;
+    private final IOScheduler.Lane lane;
+    private final FileLayout layout;
+    private final int numOfChunks;
+    private final int maxChunks;
+    private final long maxBytes;
+    // chunk index -> pending or completed fetch, in index order
+    private final TreeMap<Integer, Future<byte[]>> window = new TreeMap<>();
+    private int nextToFetch = 0;
+    private long bytesReserved = 0;
+
+    ReadAheadBuffer(CassandraFacade facade, IOScheduler.Lane lane, FileLayout layout,
+            int maxChunks, long maxBytes)
+    {
+        this.facade = facade;
+        this.lane = lane;
+        this.layout = layout;
+        this.numOfChunks = layout.getNumOfChunks();
+        this.maxChunks = Math.max(1, maxChunks);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the content of chunk <code>index</code>, waiting for it if it is
+     * still being fetched, or null past the last chunk. The chunks are known
+     * from the file length, a chunk of the file whose row is gone fails with
+     * an IOException. Taking a chunk slides the window forward.
+     */
+    byte[] take(int index) throws IOException
+    {
+        if (!window.containsKey(index)) {
+            // the consumer moved outside the window, restart it from index
+            discard();
+            nextToFetch = index;
+        }
+        else {
+            discardBefore(index);
+        }
+        fill();
+
+        Future<byte[]> fetch = window.remove(index);
+        if (fetch == null) {
+            return null;
+        }
+        bytesReserved -= chunkSize(index);
+        fill();
+
+        try {
+            return fetch.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching chunk: "
+                    + layout.chunkKey(index));
+        } catch (CancellationException ex) {
+            // the window or its lane was closed
+            throw new IOException("Fetch of chunk " + layout.chunkKey(index) + " was cancelled");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Cancels every outstanding fetch.
+     */
+    void close()
+    {
+        discard();
+        nextToFetch = numOfChunks;
+    }
+
+    private void fill()
+    {
+        while (nextToFetch < numOfChunks && window.size() < maxChunks
+                && (window.isEmpty() || bytesReserved + chunkSize(nextToFetch) <= maxBytes)) {
+            final int index = nextToFetch++;
+            bytesReserved += chunkSize(index);
+            window.put(index, lane.submit(new Callable<byte[]>()
+            {
+                @Override
+                public byte[] call() throws Exception
+                {
+                    return fetch(index);
+                }
+            }));
+        }
+    }
+
+    private byte[] fetch(int index) throws IOException
+    {
+        String key = layout.chunkKey(index);
+        LOGGER.debug("Buffering chunk: " + key);
+        byte[] bytes = layout.readChunk(facade, index);
+        if (bytes == null)
+            throw new IOException("Missing chunk " + index + " of file " + layout.getUUID() + ", row " + key);
+        LOGGER.debug("Buffering chunk: " + key + "...completed.");
+        return bytes;
+    }
+
+    private void discardBefore(int index)
+    {
+        Iterator<Map.Entry<Integer, Future<byte[]>>> it = window.headMap(index).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Future<byte[]>> entry = it.next();
+            entry.getValue().cancel(false);
+            bytesReserved -= chunkSize(entry.getKey());
+            it.remove();
+        }
+    }
+
+    private void discard()
+    {
+        for (Future<byte[]> fetch : window.values()) {
+            fetch.cancel(false);
+        }
+        window.clear();
+        bytesReserved = 0;
+    }
+
+    private long chunkSize(int index)
+    {
+        return layout.chunkLength(index);
+    }
+}
@@ -0,0 +1,244 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes the blocks of a file through a lane of the {@link IOScheduler}, so up
+ * to <code>concurrency</code> chunk mutations are in flight while the caller
+ * reads the next block. {@link #write} blocks while all of them are busy, which
+ * bounds the memory held by the pipeline to <code>concurrency</code> blocks.
+ * Every block buffer goes back to the {@link BufferPool} once written or
+ * dropped.
+ *
+ * The first failure fails every later call. A block dropped by its lane
+ * before it was written, because the scheduler was shut down, is a failure
+ * too. After a failure or when the upload is given up, {@link #abort} drops
+ * the blocks not sent yet and reports which ones were written, so the caller
+ * can reclaim them.
+ */
+public class UploadPipeline
+{
+    private static Logger LOGGER = Logger.getLogger(UploadPipeline.class);
+    private final CassandraFacade facade;
+    private final FileLayout layout;
+    private final IOScheduler.Lane lane;
+    private final BufferPool pool;
+    private final Semaphore slots;
+    private final List<Task> pending = new ArrayList<>();
+    // row keys of the blocks written and not drained yet, by index
+    private final TreeMap<Integer, String> written = new TreeMap<>();
+    private volatile IOException failure;
+    private boolean aborted = false;
+
+    /**
+     * A block queued for writing.
+     */
+    class Task implements Runnable
+    {
+        final int index;
+        final ByteBuffer content;
+        final int offset;
+        Future<?> future;
+
+        Task(int index, ByteBuffer content, int offset)
+        {
+            this.index = index;
+            this.content = content;
+            this.offset = offset;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                // recorded before writing, a failed write still gives back
+                // what the claim took
+                String key = layout.claimChunk(facade, index, content);
+                synchronized (written) {
+                    written.put(index, key);
+                }
+                layout.writeChunk(facade, key, index, content, offset);
+            } catch (IOException ex) {
+                fail(ex);
+            } catch (RuntimeException ex) {
+                fail(new IOException("Failed to write block " + index + " of " + layout.getUUID(), ex));
+            } finally {
+                pool.release(content);
+                slots.release();
+            }
+        }
+    }
+
+    public UploadPipeline(CassandraFacade facade, FileLayout layout, int concurrency)
+    {
+        this(facade, facade.getIOScheduler().newLane("upload " + layout.getUUID()), facade.getBufferPool(),
+                layout, concurrency);
+    }
+
+    UploadPipeline(CassandraFacade facade, IOScheduler.Lane lane, BufferPool pool, FileLayout layout,
+            int concurrency)
+    {
+        this.facade = facade;
+        this.layout = layout;
+        this.lane = lane;
+        this.pool = pool;
+        this.slots = new Semaphore(Math.max(1, concurrency));
+    }
+
+    /**
+     * Queues the remaining bytes of <code>content</code>, a buffer of the
+     * facade's pool, as block <code>index</code>. The pipeline owns
+     * <code>content</code> from now on, even if this fails.
+     */
+    public void write(int index, ByteBuffer content) throws IOException
+    {
+        write(index, content, 0);
+    }
+
+    /**
+     * Queues the remaining bytes of <code>content</code> as the part of block
+     * <code>index</code> that starts at <code>offset</code>, see
+     * {@link FileLayout#writeChunk(CassandraFacade, String, int, ByteBuffer, int)}.
+     */
+    public void write(int index, ByteBuffer content, int offset) throws IOException
+    {
+        try {
+            checkFailure();
+            slots.acquire();
+        } catch (InterruptedException e) {
+            pool.release(content);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading " + layout.getUUID());
+        } catch (IOException e) {
+            pool.release(content);
+            throw e;
+        }
+        if (failure != null) {
+            slots.release();
+            pool.release(content);
+            throw failure;
+        }
+
+        Task task = new Task(index, content, offset);
+        task.future = lane.submit(task);
+        pending.add(task);
+
+        // forget the blocks already sent, a dropped one never ran and still holds its buffer and slot
+        Iterator<Task> it = pending.iterator();
+        while (it.hasNext()) {
+            Task done = it.next();
+            if (done.future.isCancelled())
+                dropped(done);
+            if (done.future.isDone())
+                it.remove();
+        }
+        checkFailure();
+    }
+
+    /**
+     * Waits until every block queued so far is written.
+     */
+    public void flush() throws IOException
+    {
+        await();
+        checkFailure();
+    }
+
+    /**
+     * Waits until every queued block is written and releases the lane.
+     */
+    public void finish() throws IOException
+    {
+        await();
+        lane.close();
+        checkFailure();
+        LOGGER.debug("Upload of " + layout.getUUID() + " finished");
+    }
+
+    /**
+     * Drops the blocks not sent yet and waits for those being written.
+     *
+     * @return the row keys of the blocks that were written and not drained,
+     *         by index
+     */
+    public SortedMap<Integer, String> abort()
+    {
+        aborted = true;
+        lane.close();
+        try {
+            await();
+        } catch (InterruptedIOException e) {
+            LOGGER.warn("Interrupted while aborting the upload of " + layout.getUUID());
+        }
+        return drainWritten();
+    }
+
+    /**
+     * Hands over the row keys of the blocks written since the last call, by
+     * index.
+     */
+    public SortedMap<Integer, String> drainWritten()
+    {
+        synchronized (written) {
+            SortedMap<Integer, String> drained = new TreeMap<>(written);
+            written.clear();
+            return drained;
+        }
+    }
+
+    private void await() throws InterruptedIOException
+    {
+        for (Task task : pending) {
+            try {
+                task.future.get();
+            } catch (CancellationException e) {
+                dropped(task);
+            } catch (ExecutionException e) {
+                // failures are recorded by the task itself
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while uploading " + layout.getUUID());
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Gives back the buffer and the slot of a task dropped before it started.
+     */
+    private void dropped(Task task)
+    {
+        pool.release(task.content);
+        slots.release();
+        if (!aborted)
+            fail(new IOException("Block " + task.index + " of " + layout.getUUID() + " was dropped before it was written"));
+    }
+
+    private void fail(IOException ex)
+    {
+        synchronized (this) {
+            if (failure == null)
+                failure = ex;
+        }
+        LOGGER.warn("Upload of " + layout.getUUID() + " failed", ex);
+    }
+
+    private void checkFailure() throws IOException
+    {
+        if (failure != null)
+            throw failure;
+    }
+}
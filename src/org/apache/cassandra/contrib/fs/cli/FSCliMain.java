@@ -18,6 +18,7 @@ import jline.Completor;
 import jline.ConsoleReader;
 
 import org.apache.cassandra.contrib.fs.CassandraFileSystem;
+import org.apache.cassandra.contrib.fs.FileBatch;
 import org.apache.cassandra.contrib.fs.IFileSystem;
 import org.apache.cassandra.contrib.fs.Path;
 import org.apache.cassandra.contrib.fs.PathUtil;
@@ -115,6 +116,10 @@ public class FSCliMain {
                 processCD(tokens);
             } else if (cmd.equalsIgnoreCase("touch")) {
                 processTouch(tokens);
+            } else if (cmd.equalsIgnoreCase("rebuildindexes")) {
+                processRebuildIndexes(tokens);
+            } else if (cmd.equalsIgnoreCase("sweepchunks")) {
+                processSweepChunks(tokens);
             } else if (cmd.equalsIgnoreCase("help")) {
                 processHelp(tokens);
             } else if (cmd.equalsIgnoreCase("clear")) {
@@ -178,7 +183,7 @@ public class FSCliMain {
         if (hdfsFS.exists(sourcePath)) {
             if (hdfsFS.isFile(sourcePath)) {
                 fs.createFile(tokens[2] + strSubtract(source, tokens[1]),
-                        hdfsFS.open(sourcePath));
+                        hdfsFS.open(sourcePath), hdfsFS.getFileStatus(sourcePath).getLen());
             } else {
                 FileStatus[] children = hdfsFS.listStatus(sourcePath);
                 for (FileStatus child : children) {
@@ -221,6 +226,8 @@ public class FSCliMain {
         out.println("copyToHDFS <source> <dest>");
         out.println("mkdir <path>");
         out.println("ls <path>");
+        out.println("sweepChunks [hours]");
+        out.println("rebuildIndexes [folder]");
     }
 
     private void processCD(String[] tokens) throws IOException {
@@ -249,20 +256,16 @@ public class FSCliMain {
 
                 boolean isDir = localDestFile.isDirectory();
                 if (localDestFile.isFile()) {
-                    InputStream in = fs.readFile(decoratePath(tokens[1]));
                     FileOutputStream os = new FileOutputStream(localDestFile);
-                    IOUtils.copy(in, os);
+                    fs.transferTo(decoratePath(tokens[1]), os.getChannel());
                     os.close();
-                    in.close();
                 } else if (isDir) {
-                    InputStream in = fs.readFile(decoratePath(tokens[1]));
                     FileOutputStream os = new FileOutputStream(localDestFile.getAbsolutePath()
                             + "/"
                             + new Path(decoratePath(tokens[1])).getName());
 
-                    IOUtils.copy(in, os);
+                    fs.transferTo(decoratePath(tokens[1]), os.getChannel());
                     os.close();
-                    in.close();
                 } else {
                     System.out.println("Path neither File nor Directory...");
                 }
@@ -296,11 +299,11 @@ public class FSCliMain {
                 visitNodeWhenCopyToLocal(subPath, tokens);
             }
         } else {
-            InputStream in = fs.readFile(decoratePath(path.getURL()));
-            IOUtils.copy(in, new FileOutputStream(new File(
+            FileOutputStream os = new FileOutputStream(new File(
                     decoratePath(tokens[2]
-                    + strSubtract(path.getURL(), tokens[1])))));
-            in.close();
+                    + strSubtract(path.getURL(), tokens[1]))));
+            fs.transferTo(decoratePath(path.getURL()), os.getChannel());
+            os.close();
         }
     }
 
@@ -319,6 +322,34 @@ public class FSCliMain {
         }
     }
 
+    private void processRebuildIndexes(String[] tokens) throws IOException {
+        if (tokens.length > 2 || !(fs instanceof CassandraFileSystem)) {
+            out.println("Usage: rebuildIndexes [folder]");
+            return;
+        }
+        String path = tokens.length == 2 ? decoratePath(tokens[1]) : "/";
+        long count = ((CassandraFileSystem) fs).rebuildIndexes(path);
+        out.println(count + " files and folders indexed below " + path);
+    }
+
+    private void processSweepChunks(String[] tokens) throws IOException {
+        if (tokens.length > 2 || !(fs instanceof CassandraFileSystem)) {
+            out.println("Usage: sweepChunks [hours]");
+            return;
+        }
+        long hours = 24;
+        if (tokens.length == 2) {
+            try {
+                hours = Long.parseLong(tokens[1]);
+            } catch (NumberFormatException e) {
+                out.println("Usage: sweepChunks [hours]");
+                return;
+            }
+        }
+        long queued = ((CassandraFileSystem) fs).sweepChunks(hours * 3600 * 1000);
+        out.println(queued + " chunks older than " + hours + " hours queued for deletion");
+    }
+
     private void processRM(String[] tokens) throws IOException {
         if (tokens.length < 2) {
             out.println("Usage: rm <file | folder>...");
@@ -405,20 +436,23 @@ public class FSCliMain {
             }
             File localFile = new File(decoratePath(tokens[1]));
             if (localFile.exists()) {
-                visitNodeWhenCopyFromLocal(localFile, tokens);
+                // the metadata of all the files is committed in a few mutations
+                try (FileBatch batch = fs.createBatch()) {
+                    visitNodeWhenCopyFromLocal(localFile, tokens, batch);
+                }
             } else {
                 out.println("Source '" + tokens[1] + "' does not exist");
             }
         }
     }
 
-    private void visitNodeWhenCopyFromLocal(File file, String[] tokens)
+    private void visitNodeWhenCopyFromLocal(File file, String[] tokens, FileBatch batch)
             throws FileNotFoundException, IOException {
         if (file.isFile()) {
             copyFileFromLocal(decoratePath(file.getAbsolutePath()),
                     decoratePath(tokens[2]
                     + strSubtract(decoratePath(file.getAbsolutePath()),
-                    decoratePath(tokens[1]))));
+                    decoratePath(tokens[1]))), batch);
         } else {
             File[] files = file.listFiles();
             for (File child : files) {
@@ -426,9 +460,9 @@ public class FSCliMain {
                     copyFileFromLocal(decoratePath(child.getAbsolutePath()),
                             decoratePath(tokens[2]
                             + strSubtract(decoratePath(child.getAbsolutePath()),
-                            decoratePath(tokens[1]))));
+                            decoratePath(tokens[1]))), batch);
                 } else {
-                    visitNodeWhenCopyFromLocal(child, tokens);
+                    visitNodeWhenCopyFromLocal(child, tokens, batch);
                 }
             }
         }
@@ -444,11 +478,11 @@ public class FSCliMain {
         }
     }
 
-    private void copyFileFromLocal(String source, String dest)
+    private void copyFileFromLocal(String source, String dest, FileBatch batch)
             throws FileNotFoundException, IOException {
         //System.out.println("source: " + source + ", dest: " + dest);
         FileInputStream in = new FileInputStream(source);
-        fs.createFile(decoratePath(dest), in);
+        batch.createFile(decoratePath(dest), in, new File(source).length());
         in.close();
     }
 
@@ -6,7 +6,7 @@ public class FSComamndCompletor extends SimpleCompletor {
 
 	private static final String[] commands = { "ls", "pwd", "rm", "rmr",
 			"copyFromLocal", "copyToLocal", "newFile", "cd", 
-                        "touch", "exit", "mkdir", "cat", "help", "quit"};
+                        "touch", "exit", "mkdir", "cat", "help", "quit", "sweepChunks", "rebuildIndexes"};
 
 	public FSComamndCompletor(String[] candidateStrings) {
 		super(candidateStrings);
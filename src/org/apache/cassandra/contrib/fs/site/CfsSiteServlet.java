@@ -12,6 +12,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.cassandra.contrib.fs.CFileInputStream;
 import org.apache.cassandra.contrib.fs.CassandraFileSystem;
 import org.apache.cassandra.contrib.fs.Path;
 import org.apache.commons.io.IOUtils;
@@ -173,7 +174,10 @@ public class CfsSiteServlet extends HttpServlet{
 //				throw new CfsSiteException("NotExistFile",path);
 //			}
 			//output
-			IOUtils.copy(CassandraFileSystem.getInstance().readFile(path), stream);
+			// the servlet only offers a stream, chunks are written to it as fetched
+			CFileInputStream in = CassandraFileSystem.getInstance().open(path);
+			is = in;
+			in.transferTo(stream);
 		} catch (TTransportException e) {
 			throw CfsSiteException.fromTTransportException(e);
 		} catch (IOException e) {
@@ -0,0 +1,124 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import junit.framework.TestCase;
+
+public class TestAsyncFileSystem extends TestCase {
+
+	/**
+	 * Answers existDir for any path, existFile waits for the latch and mkdir
+	 * fails.
+	 */
+	static class StubFileSystem implements IFileSystem {
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		public void createFile(String path, byte[] content) {}
+		public void createFile(String path, InputStream in) {}
+		public void createFile(String path, InputStream in, long expectedLength) {}
+		public void createFiles(Map<String, InputStream> files) {}
+		public FileBatch createBatch() { return null; }
+		public CFileOutputStream create(String path) { return null; }
+		public CFileOutputStream create(String path, long expectedLength, boolean randomAccess) { return null; }
+		public CFileOutputStream append(String path) { return null; }
+		public boolean deleteFile(String path) { return true; }
+		public boolean deleteDir(String path, boolean recursive) { return true; }
+		public InputStream readFile(String path) { return null; }
+		public CFileInputStream open(String path) { return null; }
+		public Map<String, byte[]> readFiles(List<String> paths) { return Collections.emptyMap(); }
+		public long transferTo(String path, WritableByteChannel out) { return 0; }
+		public List<Path> list(String path) { return Collections.emptyList(); }
+		public Path stat(String path) { return null; }
+		public boolean exist(String path) { return true; }
+		public int countDirChilden(String path) { return 0; }
+		public void touchFile(String path) {}
+
+		public boolean mkdir(String path) throws IOException {
+			throw new IOException("read-only");
+		}
+
+		public boolean existDir(String path) {
+			return true;
+		}
+
+		public boolean existFile(String path) throws IOException {
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			return true;
+		}
+	}
+
+	public void testCompletes() throws Exception {
+		AsyncCassandraFileSystem fs = new AsyncCassandraFileSystem(new StubFileSystem(), 2, 4, false);
+		assertTrue(fs.existDir("/a").get(10, TimeUnit.SECONDS));
+		assertNull(fs.stat("/a").get(10, TimeUnit.SECONDS));
+		try {
+			fs.mkdir("/a").get(10, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		fs.shutdown();
+	}
+
+	public void testBoundsInFlight() throws Exception {
+		StubFileSystem stub = new StubFileSystem();
+		final AsyncCassandraFileSystem fs = new AsyncCassandraFileSystem(stub, 1, 2, false);
+		CompletableFuture<Boolean> first = fs.existFile("/a");
+		CompletableFuture<Boolean> second = fs.existFile("/b");
+		assertEquals(2, fs.getInFlight());
+		assertFalse(first.isDone());
+
+		// past the limit the caller waits for an operation to complete
+		final CompletableFuture<CompletableFuture<Boolean>> third = new CompletableFuture<CompletableFuture<Boolean>>();
+		Thread caller = new Thread() {
+			@Override
+			public void run() {
+				third.complete(fs.existFile("/c"));
+			}
+		};
+		caller.start();
+		caller.join(200);
+		assertTrue(caller.isAlive());
+		assertFalse(third.isDone());
+		assertEquals(2, fs.getInFlight());
+
+		stub.latch.countDown();
+		assertTrue(first.get(10, TimeUnit.SECONDS));
+		assertTrue(second.get(10, TimeUnit.SECONDS));
+		assertTrue(third.get(10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS));
+		fs.shutdown();
+	}
+
+	public void testCallbacksDoNotWait() throws Exception {
+		StubFileSystem stub = new StubFileSystem();
+		final AsyncCassandraFileSystem fs = new AsyncCassandraFileSystem(stub, 1, 2, false);
+		CompletableFuture<Boolean> first = fs.existFile("/a");
+		CompletableFuture<Boolean> second = fs.existDir("/b");
+		// runs on the only thread of the pool while the second waits in its queue
+		CompletableFuture<Boolean> nested = first.thenCompose(new Function<Boolean, CompletableFuture<Boolean>>() {
+			@Override
+			public CompletableFuture<Boolean> apply(Boolean exists) {
+				fs.existDir("/c");
+				return fs.existDir("/d");
+			}
+		});
+		stub.latch.countDown();
+		assertTrue(nested.get(10, TimeUnit.SECONDS));
+		assertTrue(second.get(10, TimeUnit.SECONDS));
+		fs.shutdown();
+	}
+}
@@ -0,0 +1,30 @@
+package org.apache.cassandra.contrib.fs;
+
+import junit.framework.TestCase;
+
+public class TestBlockSizeChooser extends TestCase {
+
+	private static final int Min = 1 << 20;
+	private static final int Max = 15204352;
+
+	public void testSmallFilesGetOneBlock() {
+		assertEquals(Min, BlockSizeChooser.choose(1000, false, Min, Max, 0));
+		assertEquals(4 << 20, BlockSizeChooser.choose(3 << 20, false, Min, Max, 0));
+		assertEquals(4 << 20, BlockSizeChooser.choose(4 << 20, false, Min, Max, 0));
+		// never larger than the configured block size
+		assertEquals(Max, BlockSizeChooser.choose(Max - 1, false, Min, Max, 0));
+	}
+
+	public void testLargeAndUnknownFiles() {
+		assertEquals(Max, BlockSizeChooser.choose(-1, false, Min, Max, 0));
+		assertEquals(Max, BlockSizeChooser.choose(10L * Max, false, Min, Max, 0));
+	}
+
+	public void testRandomAccess() {
+		assertEquals(Min, BlockSizeChooser.choose(10L * Max, true, Min, Max, 0));
+	}
+
+	public void testWholeSubBlocks() {
+		assertEquals(7 * 300000, BlockSizeChooser.choose(2 << 20, false, 4096, Max, 300000));
+	}
+}
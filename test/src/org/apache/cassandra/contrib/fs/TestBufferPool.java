@@ -0,0 +1,75 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class TestBufferPool extends TestCase {
+
+	public void testReuse() {
+		BufferPool pool = new BufferPool(1 << 20);
+		ByteBuffer buffer = pool.acquire(5000);
+		assertEquals(8192, buffer.capacity());
+		assertEquals(5000, buffer.limit());
+		assertEquals(8192, pool.getOutstandingBytes());
+
+		pool.release(buffer);
+		assertEquals(0, pool.getOutstandingBytes());
+		assertEquals(8192, pool.getIdleBytes());
+		// same size class
+		assertSame(buffer, pool.acquire(6000));
+		assertEquals(6000, buffer.limit());
+		assertEquals(1, pool.getHits());
+		assertEquals(1, pool.getAllocations());
+	}
+
+	public void testCapacity() {
+		BufferPool pool = new BufferPool(16384);
+		ByteBuffer first = pool.acquire(16384);
+		// over capacity, allocated but not pooled
+		ByteBuffer second = pool.acquire(4096);
+		assertEquals(16384, pool.getOutstandingBytes());
+		pool.release(second);
+		pool.release(first);
+		assertEquals(16384, pool.getIdleBytes());
+
+		try {
+			pool.release(first);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	public void testEvictsOtherClasses() {
+		BufferPool pool = new BufferPool(16384);
+		ByteBuffer large = pool.acquire(16384);
+		pool.release(large);
+		assertEquals(16384, pool.getIdleBytes());
+
+		// no idle buffer of this class, the idle large one makes room
+		ByteBuffer small = pool.acquire(4096);
+		assertEquals(1, pool.getEvictions());
+		assertEquals(0, pool.getIdleBytes());
+		assertEquals(4096, pool.getOutstandingBytes());
+		pool.release(small);
+		assertSame(small, pool.acquire(4096));
+		pool.release(small);
+
+		// room is left for another class, nothing dropped
+		pool.release(pool.acquire(8192));
+		assertEquals(1, pool.getEvictions());
+		assertEquals(12288, pool.getIdleBytes());
+		// every idle buffer is needed to make room
+		pool.acquire(16384);
+		assertEquals(3, pool.getEvictions());
+		assertEquals(0, pool.getIdleBytes());
+	}
+
+	public void testDisabled() {
+		BufferPool pool = new BufferPool(0);
+		ByteBuffer buffer = pool.acquire(100);
+		assertEquals(100, buffer.capacity());
+		pool.release(buffer);
+		assertEquals(0, pool.getIdleBytes());
+	}
+}
@@ -1,23 +1,32 @@
 package org.apache.cassandra.contrib.fs;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
 import junit.framework.TestCase;
 
+import org.apache.cassandra.cli.CliMain;
 import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.contrib.fs.util.Bytes;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.thrift.transport.TTransportException;
 
 public class TestCassandraFileSystem extends TestCase {
 
-	private EmbeddedCassandra daemon;
+	// a node can only be started once in a JVM, all the tests share it
+	private static EmbeddedCassandra daemon;
 
 	// clear cassandra stuff
 	private void clearCassandraStuff() throws IOException {
@@ -25,7 +34,8 @@ public class TestCassandraFileSystem extends TestCase {
 		for (String dataDir : DatabaseDescriptor.getAllDataFileLocations()) {
 			dirs.add(dataDir);
 		}
-		dirs.add(DatabaseDescriptor.getLogFileLocation());
+		dirs.add(DatabaseDescriptor.getCommitLogLocation());
+		dirs.add(DatabaseDescriptor.getSavedCachesLocation());
 
 		for (String dir : dirs) {
 			FileUtils.deleteDirectory(new File(dir));
@@ -34,9 +44,30 @@ public class TestCassandraFileSystem extends TestCase {
 
 	@Override
 	protected void setUp() throws Exception {
+		if (daemon != null) {
+			return;
+		}
 		clearCassandraStuff();
 		daemon = new EmbeddedCassandra();
+		daemon.setDaemon(true);
 		daemon.start();
+		loadSchema();
+	}
+
+	// runs the statements of the schema file through the cli once the node listens
+	private void loadSchema() throws Exception {
+		for (int i = 0; i < 60 && !CliMain.isConnected(); i++) {
+			Thread.sleep(1000);
+			CliMain.connect("localhost", 9160);
+		}
+		assertTrue(CliMain.isConnected());
+		String schema = FileUtils.readFileToString(new File("conf/cassandrafs-schema.txt"));
+		for (String statement : schema.replaceAll("(?s)/\\*.*?\\*/", "").split(";")) {
+			if (statement.trim().length() > 0) {
+				CliMain.processStatement(statement.trim());
+			}
+		}
+		CliMain.disconnect();
 	}
 
 	public void testBasicOperation() throws TTransportException, IOException {
@@ -96,4 +127,334 @@ public class TestCassandraFileSystem extends TestCase {
 		assertTrue(fs.deleteFile("/data/b.txt"));
 		assertEquals(0, fs.list("/data").size());
 	}
+
+	public void testSeekPastEnd() throws TTransportException, IOException {
+		IFileSystem fs = CassandraFileSystem.getInstance();
+		fs.createFile("/seek/a.txt", "0123456789".getBytes());
+		CFileInputStream in = fs.open("/seek/a.txt");
+		in.seek(4);
+		try {
+			in.seek(11);
+			fail();
+		} catch (EOFException e) {
+		}
+		// a failed seek leaves the position alone
+		assertEquals(4, in.getPos());
+		assertEquals('4', in.read());
+		in.seek(10);
+		assertEquals(10, in.getPos());
+		assertEquals(-1, in.read());
+		in.close();
+	}
+
+	public void testReadAfterClose() throws TTransportException, IOException {
+		IFileSystem fs = CassandraFileSystem.getInstance();
+		fs.createFile("/seek/b.txt", "0123456789".getBytes());
+		CFileInputStream in = fs.open("/seek/b.txt");
+		assertEquals('0', in.read());
+		in.close();
+		// the rest of the current chunk is not served either
+		try {
+			in.read();
+			fail();
+		} catch (IOException e) {
+		}
+		try {
+			in.read(new byte[4], 0, 4);
+			fail();
+		} catch (IOException e) {
+		}
+		try {
+			in.read(ByteBuffer.allocate(4));
+			fail();
+		} catch (IOException e) {
+		}
+		try {
+			in.transferTo(new ByteArrayOutputStream());
+			fail();
+		} catch (IOException e) {
+		}
+		try {
+			in.available();
+			fail();
+		} catch (IOException e) {
+		}
+		try {
+			in.seek(2);
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	public void testMissingChunk() throws TTransportException, IOException {
+		CassandraFileSystem fs = (CassandraFileSystem) CassandraFileSystem.getInstance();
+		CassandraFacade facade = CassandraFacade.getInstance();
+		// the smallest blocks, three of them
+		byte[] content = new byte[FSConstants.MinBlockSize * 2 + 10];
+		new Random().nextBytes(content);
+		CFileOutputStream out = fs.create("/missing/a.bin", -1, true);
+		out.write(content);
+		out.close();
+		FileLayout layout = facade.loadFile("/missing/a.bin");
+		assertEquals(3, layout.getNumOfChunks());
+
+		// reclaimed while a reader still has the file open
+		CFileInputStream in = fs.open("/missing/a.bin");
+		facade.delete(layout.chunkKey(1), FSConstants.FileDataCF);
+		try {
+			in.readFully(FSConstants.MinBlockSize + 1, new byte[4]);
+			fail();
+		} catch (EOFException e) {
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains(layout.getUUID()));
+		}
+		try {
+			IOUtils.toByteArray(in);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains(layout.getUUID()));
+		}
+		in.close();
+	}
+
+	public void testReadFiles() throws TTransportException, IOException {
+		IFileSystem fs = CassandraFileSystem.getInstance();
+		fs.createFile("/batch/a.txt", "aaa".getBytes());
+		fs.createFile("/batch/b.txt", "bbb".getBytes());
+		fs.createFile("/batch/c.txt", "ccc".getBytes());
+		fs.createFile("/other/d.txt", "ddd".getBytes());
+
+		List<String> paths = new ArrayList<String>();
+		paths.add("/batch/a.txt");
+		paths.add("/other/d.txt");
+		paths.add("/batch/missing.txt");
+		paths.add("/batch");
+		Map<String, byte[]> files = fs.readFiles(paths);
+		// only the files asked for, folders and missing paths are left out
+		assertEquals(2, files.size());
+		assertEquals("aaa", new String(files.get("/batch/a.txt")));
+		assertEquals("ddd", new String(files.get("/other/d.txt")));
+
+		// the content is a copy, not the cached block
+		files.get("/batch/a.txt")[0] = 'x';
+		files = fs.readFiles(paths);
+		assertEquals("aaa", new String(files.get("/batch/a.txt")));
+		assertEquals("aaa", IOUtils.toString(fs.readFile("/batch/a.txt")));
+	}
+
+	public void testInlineGrowsOnAppend() throws TTransportException, IOException {
+		IFileSystem fs = CassandraFileSystem.getInstance();
+		CassandraFacade facade = CassandraFacade.getInstance();
+		int threshold = FSConstants.InlineThreshold;
+		int subBlockSize = FSConstants.SubBlockSize;
+		FSConstants.InlineThreshold = 16;
+		FSConstants.SubBlockSize = 4;
+		try {
+			fs.createFile("/inline/a.txt", "0123456789".getBytes());
+			String uuid = facade.getRowUUID("/inline/a.txt");
+			assertNotNull(facade.get(FSConstants.FileMetaCF, uuid, FSConstants.DataAttr));
+
+			// past the threshold the file is stored in blocks, Data goes
+			CFileOutputStream out = fs.append("/inline/a.txt");
+			out.write("abcdefghijkl".getBytes());
+			out.close();
+			assertNull(facade.get(FSConstants.FileMetaCF, uuid, FSConstants.DataAttr));
+			assertEquals("0123456789abcdefghijkl", IOUtils.toString(fs.readFile("/inline/a.txt")));
+
+			// the last partial sub-block is rewritten from its offset
+			out = fs.append("/inline/a.txt");
+			out.write("XY".getBytes());
+			out.close();
+			assertNull(facade.get(FSConstants.FileMetaCF, uuid, FSConstants.DataAttr));
+			assertEquals("0123456789abcdefghijklXY", IOUtils.toString(fs.readFile("/inline/a.txt")));
+		} finally {
+			FSConstants.InlineThreshold = threshold;
+			FSConstants.SubBlockSize = subBlockSize;
+		}
+	}
+
+	public void testInlineGrowsOnFlush() throws TTransportException, IOException {
+		IFileSystem fs = CassandraFileSystem.getInstance();
+		CassandraFacade facade = CassandraFacade.getInstance();
+		int threshold = FSConstants.InlineThreshold;
+		FSConstants.InlineThreshold = 16;
+		try {
+			fs.createFile("/inline/b.txt", "0123456789".getBytes());
+			String uuid = facade.getRowUUID("/inline/b.txt");
+
+			CFileOutputStream out = fs.append("/inline/b.txt");
+			out.write("abcdefghij".getBytes());
+			out.flush();
+			// committed by the flush, Data is dropped by the same mutation
+			assertNull(facade.get(FSConstants.FileMetaCF, uuid, FSConstants.DataAttr));
+			assertEquals("0123456789abcdefghij", IOUtils.toString(fs.readFile("/inline/b.txt")));
+			out.write("klm".getBytes());
+			out.close();
+			assertNull(facade.get(FSConstants.FileMetaCF, uuid, FSConstants.DataAttr));
+			assertEquals("0123456789abcdefghijklm", IOUtils.toString(fs.readFile("/inline/b.txt")));
+		} finally {
+			FSConstants.InlineThreshold = threshold;
+		}
+	}
+
+	public void testInlineKeptOnAbort() throws TTransportException, IOException {
+		IFileSystem fs = CassandraFileSystem.getInstance();
+		CassandraFacade facade = CassandraFacade.getInstance();
+		int threshold = FSConstants.InlineThreshold;
+		FSConstants.InlineThreshold = 16;
+		try {
+			fs.createFile("/inline/c.txt", "0123456789".getBytes());
+			String uuid = facade.getRowUUID("/inline/c.txt");
+
+			CFileOutputStream out = fs.append("/inline/c.txt");
+			out.write("abcdefghij".getBytes());
+			out.abort();
+			// nothing was committed, the inline content stays
+			assertNotNull(facade.get(FSConstants.FileMetaCF, uuid, FSConstants.DataAttr));
+			assertEquals("0123456789", IOUtils.toString(fs.readFile("/inline/c.txt")));
+		} finally {
+			FSConstants.InlineThreshold = threshold;
+		}
+	}
+
+	public void testOverwriteCompressedWithIncompressible() throws TTransportException, IOException {
+		IFileSystem fs = CassandraFileSystem.getInstance();
+		CassandraFacade facade = CassandraFacade.getInstance();
+		String codec = FSConstants.Codec;
+		FSConstants.Codec = ChunkCodec.LZF.getName();
+		try {
+			byte[] text = new byte[100000];
+			Arrays.fill(text, (byte) 'a');
+			fs.createFile("/codec/a.bin", text);
+			String uuid = facade.getRowUUID("/codec/a.bin");
+			assertEquals(ChunkCodec.LZF, FileLayout.load(facade, uuid).getCodec());
+
+			byte[] random = new byte[100000];
+			new Random(1).nextBytes(random);
+			fs.createFile("/codec/a.bin", random);
+			assertEquals(ChunkCodec.NONE, FileLayout.load(facade, uuid).getCodec());
+			assertTrue(Arrays.equals(random, IOUtils.toByteArray(fs.readFile("/codec/a.bin"))));
+		} finally {
+			FSConstants.Codec = codec;
+		}
+	}
+
+	public void testFileBatch() throws TTransportException, IOException {
+		IFileSystem fs = CassandraFileSystem.getInstance();
+		CassandraFacade facade = CassandraFacade.getInstance();
+		fs.createFile("/batched/a.txt", "old".getBytes());
+		String uuid = facade.getRowUUID("/batched/a.txt");
+
+		FileBatch batch = fs.createBatch();
+		// replaces the file committed before the batch
+		batch.createFile("/batched/a.txt", "new".getBytes());
+		batch.createFile("/batched/b.txt", "b1".getBytes());
+		// added twice, the second copy wins
+		batch.createFile("/batched/b.txt", "b2".getBytes());
+		batch.createFile("/batched/new/c.txt", "c".getBytes());
+		batch.close();
+		assertEquals(4, batch.getCommitted());
+
+		assertEquals("new", IOUtils.toString(fs.readFile("/batched/a.txt")));
+		assertEquals("b2", IOUtils.toString(fs.readFile("/batched/b.txt")));
+		assertEquals("c", IOUtils.toString(fs.readFile("/batched/new/c.txt")));
+		// the same rows, no duplicate FileMeta
+		assertEquals(uuid, facade.getRowUUID("/batched/a.txt"));
+		assertEquals(3, fs.list("/batched").size());
+		assertEquals(3, facade.getIndexedChildren("/batched").size());
+		assertEquals(1, fs.list("/batched/new").size());
+	}
+
+	public void testFileBatchUnderFile() throws TTransportException, IOException {
+		CassandraFileSystem fs = (CassandraFileSystem) CassandraFileSystem.getInstance();
+		fs.createFile("/batched2/f", "f".getBytes());
+		FileBatch batch = fs.createBatch();
+		try {
+			batch.createFile("/batched2/f/a.txt", "a".getBytes());
+			batch.close();
+			fail();
+		} catch (IOException e) {
+		}
+		assertTrue(fs.existFile("/batched2/f"));
+		assertFalse(fs.existDir("/batched2/f"));
+		assertEquals("f", IOUtils.toString(fs.readFile("/batched2/f")));
+	}
+
+	public void testRebuildIndexes() throws TTransportException, IOException {
+		CassandraFileSystem fs = (CassandraFileSystem) CassandraFileSystem.getInstance();
+		CassandraFacade facade = CassandraFacade.getInstance();
+		// FileMeta rows as written before DirEntries and PathIndex existed
+		Map<String, Map<String, byte[]>> rows = new HashMap<String, Map<String, byte[]>>();
+		rows.put("legacy-folder", legacyMeta("legacy", "/", "Folder"));
+		rows.put("legacy-file", legacyMeta("a.txt", "/legacy", "File"));
+		facade.batchPutMultipleRows(rows, FSConstants.FileMetaCF);
+		assertFalse(fs.existDir("/legacy"));
+
+		assertTrue(fs.rebuildIndexes("/") >= 2);
+		assertTrue(fs.existDir("/legacy"));
+		assertTrue(fs.existFile("/legacy/a.txt"));
+		assertEquals(1, fs.list("/legacy").size());
+		assertEquals("/legacy/a.txt", fs.list("/legacy").get(0).getURL());
+	}
+
+	private static Map<String, byte[]> legacyMeta(String name, String parent, String type) {
+		Map<String, byte[]> meta = new HashMap<String, byte[]>();
+		meta.put(FSConstants.NameAttr, Bytes.toBytes(name));
+		meta.put(FSConstants.PathAttr, Bytes.toBytes(parent));
+		meta.put(FSConstants.TypeAttr, Bytes.toBytes(type));
+		meta.put(FSConstants.LengthAttr, Bytes.toBytes(0L));
+		return meta;
+	}
+
+	public void testStaleCachedFile() throws TTransportException, IOException {
+		IFileSystem fs = CassandraFileSystem.getInstance();
+		CassandraFacade facade = CassandraFacade.getInstance();
+		fs.createFile("/stale/a.txt", "a".getBytes());
+		String uuid = facade.getRowUUID("/stale/a.txt");
+
+		// a UUID with no FileMeta row, as left by a file deleted elsewhere
+		facade.getPathCache().put("/stale/a.txt", "stale-uuid", false);
+		assertEquals(uuid, facade.loadFile("/stale/a.txt").getUUID());
+		assertEquals(uuid, facade.getRowUUID("/stale/a.txt"));
+
+		facade.getPathCache().put("/stale/a.txt", "stale-uuid", false);
+		CFileOutputStream out = fs.append("/stale/a.txt");
+		out.write("b".getBytes());
+		out.close();
+		assertEquals(uuid, facade.getRowUUID("/stale/a.txt"));
+		assertEquals("ab", IOUtils.toString(fs.readFile("/stale/a.txt")));
+
+		facade.getPathCache().put("/stale/a.txt", "stale-uuid", false);
+		assertTrue(fs.deleteFile("/stale/a.txt"));
+		assertFalse(fs.existFile("/stale/a.txt"));
+		assertNull(facade.get(FSConstants.FileMetaCF, uuid, FSConstants.LengthAttr));
+	}
+
+	public void testStaleCachedFolder() throws TTransportException, IOException {
+		IFileSystem fs = CassandraFileSystem.getInstance();
+		CassandraFacade facade = CassandraFacade.getInstance();
+		fs.mkdir("/stale/dir");
+		String uuid = facade.getRowUUID("/stale/dir");
+
+		// deleted by another client, still cached here
+		facade.deleteFileMeta(uuid, "/stale/dir", true);
+		facade.getPathCache().put("/stale/dir", uuid, true);
+		assertNull(facade.resolveChecked("/stale/dir"));
+
+		facade.getPathCache().put("/stale/dir", uuid, true);
+		fs.createFile("/stale/dir/x.txt", "x".getBytes());
+		assertTrue(fs.existDir("/stale/dir"));
+		assertFalse(uuid.equals(facade.getRowUUID("/stale/dir")));
+		assertEquals(1, fs.list("/stale/dir").size());
+		assertEquals("x", IOUtils.toString(fs.readFile("/stale/dir/x.txt")));
+
+		// a file is not taken for a missing folder
+		try {
+			fs.createFile("/stale/dir/x.txt/y.txt", "y".getBytes());
+			fail();
+		} catch (IOException e) {
+		}
+		assertTrue(fs.existFile("/stale/dir/x.txt"));
+	}
 }
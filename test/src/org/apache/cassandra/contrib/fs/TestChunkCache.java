@@ -0,0 +1,48 @@
+package org.apache.cassandra.contrib.fs;
+
+import junit.framework.TestCase;
+
+public class TestChunkCache extends TestCase {
+
+	public void testHitsAndMisses() {
+		ChunkCache cache = new ChunkCache(100);
+		assertNull(cache.get("a_$0", 1, 10));
+		cache.put("a_$0", 1, new byte[10]);
+		assertNotNull(cache.get("a_$0", 1, 10));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		// a chunk of the wrong length is stale
+		assertNull(cache.get("a_$0", 1, 20));
+		assertNull(cache.get("a_$0", 1, 10));
+
+		// so is a chunk of an older version of the file
+		cache.put("a_$0", 1, new byte[10]);
+		assertNull(cache.get("a_$0", 2, 10));
+
+		cache.put("a_$0", 1, new byte[10]);
+		cache.invalidate("a_$0");
+		assertNull(cache.get("a_$0", 1, 10));
+	}
+
+	public void testEvictsBySize() {
+		ChunkCache cache = new ChunkCache(100);
+		for (int i = 0; i < 5; i++) {
+			cache.put("a_$" + i, 1, new byte[40]);
+		}
+		assertTrue(cache.getWeightedSize() <= 100);
+		assertEquals(3, cache.getEvictions());
+		assertNotNull(cache.get("a_$4", 1, 40));
+
+		// larger than the whole cache
+		cache.put("b_$0", 1, new byte[101]);
+		assertNull(cache.get("b_$0", 1, 101));
+	}
+
+	public void testDisabled() {
+		ChunkCache cache = new ChunkCache(0);
+		assertFalse(cache.isEnabled());
+		cache.put("a_$0", 1, new byte[10]);
+		assertNull(cache.get("a_$0", 1, 10));
+	}
+}
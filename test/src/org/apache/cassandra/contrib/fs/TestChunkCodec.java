@@ -0,0 +1,86 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TestChunkCodec extends TestCase {
+
+	public void testRoundTrip() throws Exception {
+		byte[] text = new byte[200000];
+		for (int i = 0; i < text.length; i++) {
+			text[i] = (byte) ('a' + i % 7);
+		}
+		for (ChunkCodec codec : new ChunkCodec[] { ChunkCodec.LZF, ChunkCodec.forConfig(ChunkCodec.Snappy) }) {
+			assertTrue(codec.isCompressible(ByteBuffer.wrap(text)));
+			ByteBuffer stored = codec.encode(ByteBuffer.wrap(text, 100, 150000));
+			assertTrue(stored.remaining() < 150000);
+			byte[] column = new byte[stored.remaining()];
+			stored.get(column);
+			assertTrue(Arrays.equals(Arrays.copyOfRange(text, 100, 150100), codec.decode(column)));
+		}
+	}
+
+	public void testIncompressibleStoredAsIs() throws Exception {
+		byte[] random = new byte[100000];
+		new Random(42).nextBytes(random);
+		assertFalse(ChunkCodec.LZF.isCompressible(ByteBuffer.wrap(random)));
+		ByteBuffer stored = ChunkCodec.LZF.encode(ByteBuffer.wrap(random));
+		assertEquals(random.length + 1, stored.remaining());
+		byte[] column = new byte[stored.remaining()];
+		stored.get(column);
+		assertTrue(Arrays.equals(random, ChunkCodec.LZF.decode(column)));
+	}
+
+	public void testNone() throws Exception {
+		ByteBuffer data = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+		assertSame(data, ChunkCodec.NONE.encode(data));
+		assertSame(ChunkCodec.NONE, ChunkCodec.forName(null));
+		assertSame(ChunkCodec.NONE, ChunkCodec.forConfig("unknown"));
+	}
+
+	public void testCompressedOnce() throws Exception {
+		final int[] calls = new int[1];
+		ChunkCodec counting = new ChunkCodec() {
+			@Override
+			public String getName() {
+				return Lzf;
+			}
+
+			@Override
+			protected byte[] compress(byte[] b, int off, int len) throws IOException {
+				calls[0]++;
+				return LZF.compress(b, off, len);
+			}
+
+			@Override
+			protected byte[] uncompress(byte[] b, int off, int len) throws IOException {
+				return LZF.uncompress(b, off, len);
+			}
+		};
+		byte[] text = new byte[200000];
+		for (int i = 0; i < text.length; i++) {
+			text[i] = (byte) ('a' + i % 7);
+		}
+		// the sample is the whole column
+		assertTrue(counting.encode(ByteBuffer.wrap(text, 0, 1000)).remaining() < 1000);
+		assertEquals(1, calls[0]);
+		// the sample and the column
+		calls[0] = 0;
+		assertTrue(counting.encode(ByteBuffer.wrap(text)).remaining() < text.length);
+		assertEquals(2, calls[0]);
+
+		byte[] random = new byte[100000];
+		new Random(42).nextBytes(random);
+		calls[0] = 0;
+		assertEquals(1001, counting.encode(ByteBuffer.wrap(random, 0, 1000)).remaining());
+		assertEquals(1, calls[0]);
+		// only the sample
+		calls[0] = 0;
+		assertEquals(random.length + 1, counting.encode(ByteBuffer.wrap(random)).remaining());
+		assertEquals(1, calls[0]);
+	}
+}
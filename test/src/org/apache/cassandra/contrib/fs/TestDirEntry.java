@@ -0,0 +1,49 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.cassandra.contrib.fs.util.Bytes;
+
+public class TestDirEntry extends TestCase {
+
+	public void testPackAndUnpack() throws Exception {
+		DirEntry entry = new DirEntry("/a", "b.txt", "uuid", false, 1234, 10, 20);
+		DirEntry read = DirEntry.unpack("/a", "b.txt", entry.pack());
+		assertEquals("uuid", read.getUUID());
+		assertFalse(read.isDir());
+		assertEquals(1234, read.getLength());
+		assertEquals(20, read.getModified());
+
+		Path path = read.toPath();
+		assertEquals("/a/b.txt", path.getURL());
+		assertEquals("b.txt", path.getName());
+		assertEquals(1234, path.getLength());
+		assertEquals("/b", DirEntry.unpack("/", "b", entry.pack()).toPath().getURL());
+	}
+
+	public void testPath() {
+		assertEquals("/a/b.txt", new DirEntry("/a", "b.txt", "uuid", false, 0, 0, 0).getPath());
+		assertEquals("/a", new DirEntry("/", "a", "uuid", true, 0, 0, 0).getPath());
+		// the root folder has no parent
+		assertEquals("/", new DirEntry("", "/", "uuid", true, 0, 0, 0).getPath());
+	}
+
+	public void testFromMeta() throws Exception {
+		Map<String, byte[]> meta = new HashMap<>();
+		meta.put(FSConstants.NameAttr, Bytes.toBytes("docs"));
+		meta.put(FSConstants.PathAttr, Bytes.toBytes("/"));
+		meta.put(FSConstants.TypeAttr, Bytes.toBytes("Folder"));
+		meta.put(FSConstants.LastModifiedTime, Bytes.toBytes(30L));
+		DirEntry entry = DirEntry.fromMeta("uuid", meta);
+		assertTrue(entry.isDir());
+		assertEquals("/", entry.getParent());
+		assertEquals(30, entry.withModified(30).getModified());
+		assertEquals(40, entry.withModified(40).getModified());
+
+		meta.remove(FSConstants.NameAttr);
+		assertNull(DirEntry.fromMeta("uuid", meta));
+	}
+}
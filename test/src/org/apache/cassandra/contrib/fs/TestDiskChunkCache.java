@@ -0,0 +1,88 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class TestDiskChunkCache extends TestCase {
+
+	private File dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("chunk-cache", "");
+		dir.delete();
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	private static byte[] chunk(int size, int seed) {
+		byte[] data = new byte[size];
+		Arrays.fill(data, (byte) seed);
+		return data;
+	}
+
+	public void testVersionsAndRestart() throws IOException {
+		DiskChunkCache cache = new DiskChunkCache(dir, 4096, 2);
+		cache.put("a_$0", 1, chunk(100, 1));
+		assertTrue(Arrays.equals(chunk(100, 1), cache.get("a_$0", 1, 100)));
+		assertNull(cache.get("a_$0", 2, 100));
+		assertNull(cache.get("a_$0", 1, 50));
+
+		cache.put("a_$0", 2, chunk(100, 2));
+		cache.put("b_$0", 1, chunk(200, 3));
+		cache.invalidate("b_$0");
+		assertNull(cache.get("b_$0", 1, 200));
+		cache.close();
+
+		// the index is rebuilt from the segments, keeping the newest version
+		cache = new DiskChunkCache(dir, 4096, 2);
+		assertTrue(Arrays.equals(chunk(100, 2), cache.get("a_$0", 2, 100)));
+		assertNull(cache.get("a_$0", 1, 100));
+		cache.close();
+	}
+
+	public void testEvictsSegments() throws IOException {
+		DiskChunkCache cache = new DiskChunkCache(dir, 1000, 2);
+		for (int i = 0; i < 8; i++) {
+			cache.put("a_$" + i, 1, chunk(400, i));
+		}
+		assertEquals(2, cache.getEvictions());
+		assertNull(cache.get("a_$0", 1, 400));
+		assertTrue(Arrays.equals(chunk(400, 7), cache.get("a_$7", 1, 400)));
+
+		// larger than a segment
+		cache.put("b_$0", 1, chunk(1000, 1));
+		assertNull(cache.get("b_$0", 1, 1000));
+		cache.close();
+	}
+
+	public void testInvalidateSurvivesRestart() throws IOException {
+		DiskChunkCache cache = new DiskChunkCache(dir, 4096, 2);
+		cache.put("a_$0", 1, chunk(100, 1));
+		cache.put("b_$0", 1, chunk(100, 2));
+		// the older record of the key is dropped with the newer one
+		cache.put("b_$0", 2, chunk(100, 3));
+		cache.invalidate("a_$0");
+		cache.invalidate("b_$0");
+		cache.put("c_$0", 1, chunk(100, 4));
+		cache.close();
+
+		cache = new DiskChunkCache(dir, 4096, 2);
+		assertNull(cache.get("a_$0", 1, 100));
+		assertNull(cache.get("b_$0", 1, 100));
+		assertNull(cache.get("b_$0", 2, 100));
+		// records after the dead ones are still found
+		assertTrue(Arrays.equals(chunk(100, 4), cache.get("c_$0", 1, 100)));
+		assertEquals(1, cache.getSize());
+		cache.close();
+	}
+}
@@ -0,0 +1,118 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.cassandra.contrib.fs.util.Bytes;
+
+public class TestFileLayout extends TestCase {
+
+	public void testChunks() {
+		FileLayout layout = new FileLayout("uuid", 2500, 1000, FileLayout.WholeBlock, 0);
+		assertEquals(3, layout.getNumOfChunks());
+		assertEquals(1000, layout.chunkLength(0));
+		assertEquals(500, layout.chunkLength(2));
+		assertEquals("uuid_$2", layout.chunkKey(2));
+
+		layout = new FileLayout("uuid", 2000, 1000, FileLayout.WholeBlock, 0);
+		assertEquals(2, layout.getNumOfChunks());
+		assertEquals(1000, layout.chunkLength(1));
+
+		layout = new FileLayout("uuid", 0, 1000, FileLayout.WholeBlock, 0);
+		assertEquals(0, layout.getNumOfChunks());
+	}
+
+	public void testSubBlockNamesSortInOrder() {
+		assertTrue(FileLayout.subBlockName(9).compareTo(FileLayout.subBlockName(10)) < 0);
+		assertTrue(FileLayout.subBlockName(99).compareTo(FileLayout.subBlockName(100)) < 0);
+		// the whole-block column must stay outside any sub-block slice
+		assertTrue(FSConstants.ChunkAttr.compareTo(FileLayout.subBlockName(0)) < 0);
+	}
+
+	public void testMeta() {
+		Map<String, byte[]> meta = new FileLayout("uuid", 0, 1000, FileLayout.SubBlocks, 256).toMeta();
+		assertEquals(FileLayout.SubBlocks, Bytes.toInt(meta.get(FSConstants.LayoutAttr)));
+		assertEquals(256, Bytes.toInt(meta.get(FSConstants.SubBlockSizeAttr)));
+
+		meta = new FileLayout("uuid", 0, 1000, FileLayout.WholeBlock, 0).toMeta();
+		assertEquals(FileLayout.WholeBlock, Bytes.toInt(meta.get(FSConstants.LayoutAttr)));
+		assertFalse(meta.containsKey(FSConstants.SubBlockSizeAttr));
+	}
+
+	public void testInline() throws Exception {
+		Map<String, byte[]> meta = FileLayout.inline("uuid", new byte[] { 1, 2, 3 }).toMeta();
+		meta.put(FSConstants.LengthAttr, Bytes.toBytes(3L));
+		FileLayout layout = FileLayout.fromMeta("uuid", meta);
+		assertEquals(FileLayout.Inline, layout.getVersion());
+		assertEquals(1, layout.getNumOfChunks());
+		// served from the metadata, FileData is not touched
+		assertEquals(3, layout.readChunk(null, 0).length);
+		byte[] b = new byte[2];
+		assertEquals(2, layout.readChunk(null, 0, 1, b, 0, 2));
+		assertEquals(3, b[1]);
+	}
+
+	public void testDeduplicated() throws Exception {
+		String a = FileLayout.digest(ChunkCodec.NONE, ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+		String b = FileLayout.digest(ChunkCodec.NONE, ByteBuffer.wrap(new byte[] { 4, 5 }));
+		assertEquals(a, FileLayout.digest(ChunkCodec.NONE, ByteBuffer.wrap(new byte[] { 1, 2, 3 })));
+		assertFalse(a.equals(b));
+
+		long length = FSConstants.BlockSize + 2L;
+		FileLayout layout = new FileLayout("uuid", 0, FSConstants.BlockSize, FileLayout.Deduplicated, 0, 0, null, new String[0])
+				.withChunks(length, Arrays.asList(a, b));
+		Map<String, byte[]> meta = layout.toMeta();
+		meta.put(FSConstants.LengthAttr, Bytes.toBytes(length));
+		layout = FileLayout.fromMeta("uuid", meta);
+		assertEquals(FileLayout.Deduplicated, layout.getVersion());
+		assertEquals(a, layout.chunkKey(0));
+		assertEquals(b, layout.chunkKey(1));
+		assertFalse(layout.isKeyedByFile());
+
+		// the chunk list must match the length
+		meta.put(FSConstants.LengthAttr, Bytes.toBytes(3L));
+		try {
+			FileLayout.fromMeta("uuid", meta);
+			fail();
+		} catch (IOException e) {
+		}
+	}
+	public void testGenerations() throws Exception {
+		FileLayout layout = new FileLayout("uuid", 2500, 1000, FileLayout.WholeBlock, 0).withGeneration(7);
+		assertEquals("uuid_7_$2", layout.chunkKey(2));
+		Map<String, byte[]> meta = layout.toMeta();
+		meta.put(FSConstants.LengthAttr, Bytes.toBytes(2500L));
+		assertEquals("uuid_7_$0", FileLayout.fromMeta("uuid", meta).chunkKey(0));
+
+		// files written before generations keep their rows
+		meta.remove(FSConstants.GenerationAttr);
+		assertEquals("uuid_$0", FileLayout.fromMeta("uuid", meta).chunkKey(0));
+
+		// a stale generation left by a replaced file is ignored
+		meta = FileLayout.inline("uuid", new byte[] { 1 }).toMeta();
+		meta.put(FSConstants.LengthAttr, Bytes.toBytes(1L));
+		meta.put(FSConstants.GenerationAttr, Bytes.toBytes(7L));
+		assertEquals(0, FileLayout.fromMeta("uuid", meta).getGeneration());
+	}
+
+	public void testCodecReplaced() throws Exception {
+		FileLayout compressed = new FileLayout("uuid", 2500, 1000, FileLayout.WholeBlock, 0).withCodec(ChunkCodec.LZF);
+		Map<String, byte[]> meta = compressed.toMeta();
+		meta.put(FSConstants.LengthAttr, Bytes.toBytes(2500L));
+		assertSame(ChunkCodec.LZF, FileLayout.fromMeta("uuid", meta).getCodec());
+
+		// overwritten with incompressible blocks, the columns land over the old ones
+		meta.putAll(new FileLayout("uuid", 2500, 1000, FileLayout.WholeBlock, 0).toMeta());
+		assertSame(ChunkCodec.NONE, FileLayout.fromMeta("uuid", meta).getCodec());
+
+		// and with inline content
+		meta.putAll(compressed.toMeta());
+		meta.putAll(FileLayout.inline("uuid", new byte[] { 1, 2, 3 }).toMeta());
+		meta.put(FSConstants.LengthAttr, Bytes.toBytes(3L));
+		assertSame(ChunkCodec.NONE, FileLayout.fromMeta("uuid", meta).getCodec());
+	}
+}
@@ -0,0 +1,75 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class TestIOScheduler extends TestCase {
+
+	private Runnable record(final List<String> order, final String name) {
+		return new Runnable() {
+			public void run() {
+				order.add(name);
+			}
+		};
+	}
+
+	public void testLanesAreServedInTurn() throws Exception {
+		IOScheduler scheduler = new IOScheduler(1, false);
+		final CountDownLatch latch = new CountDownLatch(1);
+		List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+		// keep the only worker busy while the lanes fill up
+		IOScheduler.Lane blocker = scheduler.newLane("blocker");
+		blocker.submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				latch.await();
+				return null;
+			}
+		});
+		Thread.sleep(100);
+
+		IOScheduler.Lane a = scheduler.newLane("a");
+		IOScheduler.Lane b = scheduler.newLane("b");
+		a.submit(record(order, "a1"));
+		a.submit(record(order, "a2"));
+		a.submit(record(order, "a3"));
+		Future<?> last = b.submit(record(order, "b1"));
+		assertEquals(4, scheduler.getQueueDepth());
+		assertEquals(3, a.getQueueDepth());
+
+		latch.countDown();
+		last.get(5, TimeUnit.SECONDS);
+		Thread.sleep(100);
+		assertEquals("[a1, b1, a2, a3]", order.toString());
+		assertEquals(0, scheduler.getQueueDepth());
+		assertEquals(5, scheduler.getCompletedCount());
+		scheduler.shutdown();
+	}
+
+	public void testClosedLaneDropsQueuedTasks() throws Exception {
+		IOScheduler scheduler = new IOScheduler(1, false);
+		final CountDownLatch latch = new CountDownLatch(1);
+		IOScheduler.Lane lane = scheduler.newLane("lane");
+		lane.submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				latch.await();
+				return null;
+			}
+		});
+		Thread.sleep(100);
+		Future<?> queued = lane.submit(record(new ArrayList<String>(), "x"));
+		lane.close();
+		assertTrue(queued.isCancelled());
+		assertEquals(0, scheduler.getQueueDepth());
+		assertEquals(0, scheduler.getLaneCount());
+		latch.countDown();
+		scheduler.shutdown();
+	}
+}
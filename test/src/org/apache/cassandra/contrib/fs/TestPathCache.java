@@ -0,0 +1,43 @@
+package org.apache.cassandra.contrib.fs;
+
+import junit.framework.TestCase;
+
+public class TestPathCache extends TestCase {
+
+	public void testHitAndMiss() {
+		PathCache cache = new PathCache(10, 60000);
+		assertNull(cache.get("/a"));
+		cache.put("/a", "uuid", true);
+		PathCache.Resolved resolved = cache.get("/a");
+		assertEquals("uuid", resolved.getUUID());
+		assertTrue(resolved.isDir());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(0.5, cache.getHitRate(), 0.0001);
+	}
+
+	public void testInvalidate() {
+		PathCache cache = new PathCache(10, 60000);
+		cache.put("/a", "uuid", false);
+		cache.invalidate("/a");
+		assertNull(cache.get("/a"));
+		assertEquals(0, cache.getSize());
+	}
+
+	public void testExpiry() throws Exception {
+		PathCache cache = new PathCache(10, 1);
+		cache.put("/a", "uuid", false);
+		Thread.sleep(5);
+		assertNull(cache.get("/a"));
+		assertEquals(1, cache.getExpirations());
+	}
+
+	public void testDisabled() {
+		PathCache cache = new PathCache(0, 60000);
+		assertFalse(cache.isEnabled());
+		// the entry is still returned, only not kept
+		assertEquals("uuid", cache.put("/a", "uuid", false).getUUID());
+		assertNull(cache.get("/a"));
+		assertEquals(0, cache.getSize());
+	}
+}
@@ -0,0 +1,34 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class TestReadAheadBuffer extends TestCase {
+
+	public void testTake() throws Exception {
+		IOScheduler scheduler = new IOScheduler(1, false);
+		// inline files are served from their layout, without a facade
+		FileLayout layout = FileLayout.inline("uuid", new byte[] { 1, 2, 3 });
+		ReadAheadBuffer buffer = new ReadAheadBuffer(null, scheduler.newLane("read"), layout, 4, 1 << 20);
+		assertEquals(3, buffer.take(0).length);
+		assertNull(buffer.take(1));
+		scheduler.shutdown();
+	}
+
+	public void testTakeAfterClose() throws Exception {
+		IOScheduler scheduler = new IOScheduler(1, false);
+		FileLayout layout = FileLayout.inline("uuid", new byte[] { 1, 2, 3 });
+		IOScheduler.Lane lane = scheduler.newLane("read");
+		ReadAheadBuffer buffer = new ReadAheadBuffer(null, lane, layout, 4, 1 << 20);
+		buffer.close();
+		lane.close();
+		try {
+			// the fetch is cancelled by the closed lane
+			buffer.take(0);
+			fail();
+		} catch (IOException e) {
+		}
+		scheduler.shutdown();
+	}
+}
@@ -0,0 +1,64 @@
+package org.apache.cassandra.contrib.fs;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+public class TestUploadPipeline extends TestCase {
+
+	private IOScheduler scheduler;
+	private CountDownLatch latch;
+
+	@Override
+	protected void setUp() {
+		scheduler = new IOScheduler(1, false);
+		latch = new CountDownLatch(1);
+		// keeps the only worker busy, the blocks stay queued
+		scheduler.newLane("busy").submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				latch.await();
+				return null;
+			}
+		});
+	}
+
+	@Override
+	protected void tearDown() {
+		latch.countDown();
+		scheduler.shutdown();
+	}
+
+	public void testDroppedBlocks() throws Exception {
+		BufferPool pool = new BufferPool(1 << 20);
+		IOScheduler.Lane lane = scheduler.newLane("upload");
+		UploadPipeline pipeline = new UploadPipeline(null, lane, pool,
+				new FileLayout("uuid", 0, 1000, FileLayout.WholeBlock, 0), 2);
+		pipeline.write(0, pool.acquire(1000));
+		// the lane goes away under the upload
+		lane.close();
+		try {
+			pipeline.write(1, pool.acquire(1000));
+			fail();
+		} catch (IOException e) {
+		}
+		assertEquals(0, pool.getOutstandingBytes());
+		try {
+			pipeline.finish();
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	public void testAbort() throws Exception {
+		BufferPool pool = new BufferPool(1 << 20);
+		UploadPipeline pipeline = new UploadPipeline(null, scheduler.newLane("upload"), pool,
+				new FileLayout("uuid", 0, 1000, FileLayout.WholeBlock, 0), 2);
+		pipeline.write(0, pool.acquire(1000));
+		pipeline.write(1, pool.acquire(1000));
+		assertTrue(pipeline.abort().isEmpty());
+		assertEquals(0, pool.getOutstandingBytes());
+	}
+}